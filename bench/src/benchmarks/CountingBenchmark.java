@@ -0,0 +1,89 @@
+package benchmarks;
+
+import io.LocalKmersCounter;
+import org.openjdk.jmh.annotations.*;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counting k-mers in the shared map by several threads, time is given per k-mer.
+ * Every thread counts its own part of k-mers, the number of threads is set by -t option.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class CountingBenchmark {
+    static final int KMERS_PER_THREAD = 1 << 16;
+
+    @State(Scope.Benchmark)
+    public static class SharedMap {
+        @Param({"31"})
+        int k;
+
+        @Param({SyntheticReads.DEFAULT_SOURCE})
+        String source;
+
+        @Param({"100000"})
+        int reads;
+
+        long[] kmers;
+        BigLong2ShortHashMap hm;
+        final AtomicInteger threads = new AtomicInteger();
+
+        @Setup
+        public void setup() throws IOException {
+            kmers = SyntheticReads.canonicalKmers(SyntheticReads.generate(source, reads), k);
+        }
+
+        @Setup(Level.Iteration)
+        public void newMap() {
+            hm = new BigLong2ShortHashMap(8, 12);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadPart {
+        long[] kmers;
+        LocalKmersCounter counter;
+
+        @Setup
+        public void setup(SharedMap shared) {
+            int from = shared.threads.getAndIncrement() * KMERS_PER_THREAD % shared.kmers.length;
+            kmers = new long[KMERS_PER_THREAD];
+            for (int i = 0; i < KMERS_PER_THREAD; i++) {
+                kmers[i] = shared.kmers[(from + i) % shared.kmers.length];
+            }
+        }
+
+        @Setup(Level.Iteration)
+        public void newCounter(SharedMap shared) {
+            counter = new LocalKmersCounter(shared.hm);
+        }
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(KMERS_PER_THREAD)
+    public void addAndBound(SharedMap shared, ThreadPart part) {
+        BigLong2ShortHashMap hm = shared.hm;
+        for (long kmer : part.kmers) {
+            hm.addAndBound(kmer, (short) 1);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KMERS_PER_THREAD)
+    public void localBuffers(ThreadPart part) {
+        LocalKmersCounter counter = part.counter;
+        for (long kmer : part.kmers) {
+            counter.add(kmer, 1);
+        }
+        counter.flush();
+    }
+}
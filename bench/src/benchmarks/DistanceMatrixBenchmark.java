@@ -0,0 +1,80 @@
+package benchmarks;
+
+import algo.DistanceMatrix;
+import algo.Metric;
+import org.openjdk.jmh.annotations.*;
+import structures.FeaturesVector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distance matrix for random sparse features vectors in one thread, time is given per pair of vectors.
+ * listBrayCurtis is the former implementation on boxed lists.
+ * The matrix is calculated on dense or sparse vectors depending on density (fraction of non-zero values).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DistanceMatrixBenchmark {
+    static final int VECTORS = 32;
+    static final int PAIRS = VECTORS * (VECTORS - 1) / 2;
+
+    @Param({"100000"})
+    int components;
+
+    @Param({"bray-curtis", "jaccard", "cosine", "clr-euclidean", "jensen-shannon", "pearson", "spearman"})
+    String metric;
+
+    @Param({"0.25"})
+    double density;
+
+    FeaturesVector[] vectors;
+    List<List<Long>> lists;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(239);
+        vectors = new FeaturesVector[VECTORS];
+        lists = new ArrayList<List<Long>>();
+        for (int i = 0; i < VECTORS; i++) {
+            long[] vector = new long[components];
+            List<Long> list = new ArrayList<Long>();
+            for (int pos = 0; pos < components; pos++) {
+                vector[pos] = (random.nextDouble() < density) ? random.nextInt(1000) : 0;
+                list.add(vector[pos]);
+            }
+            vectors[i] = FeaturesVector.of(vector);
+            lists.add(list);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public double[][] matrix() {
+        return DistanceMatrix.calculate(vectors, Metric.create(metric), 1);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public double[][] listBrayCurtis() {
+        double[][] matrix = new double[VECTORS][VECTORS];
+        for (int i = 0; i < VECTORS; i++) {
+            for (int j = i + 1; j < VECTORS; j++) {
+                List<Long> vector1 = lists.get(i), vector2 = lists.get(j);
+                long sumdiff = 0, sum = 0;
+                for (int pos = 0; pos < vector1.size(); pos++) {
+                    sumdiff += Math.abs(vector1.get(pos) - vector2.get(pos));
+                    sum += Math.abs(vector1.get(pos)) + Math.abs(vector2.get(pos));
+                }
+                matrix[i][j] = matrix[j][i] = sumdiff / (double) sum;
+            }
+        }
+        return matrix;
+    }
+}
@@ -0,0 +1,64 @@
+package benchmarks;
+
+import algo.HashMapOperations;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.ifmo.genetics.dna.kmers.ShortKmer;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups of the only left or right neighbour in the k-mers map, time is given per k-mer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HashMapOperationsBenchmark {
+    static final int KMERS = 1 << 16;
+
+    @Param({"31"})
+    int k;
+
+    @Param({SyntheticReads.DEFAULT_SOURCE})
+    String source;
+
+    @Param({"100000"})
+    int reads;
+
+    BigLong2ShortHashMap hm;
+    ShortKmer[] kmers;
+
+    @Setup
+    public void setup() throws IOException {
+        long[] all = SyntheticReads.canonicalKmers(SyntheticReads.generate(source, reads), k);
+        hm = new BigLong2ShortHashMap(6, 12);
+        for (long kmer : all) {
+            hm.addAndBound(kmer, (short) 1);
+        }
+        kmers = new ShortKmer[KMERS];
+        for (int i = 0; i < KMERS; i++) {
+            kmers[i] = new ShortKmer(all[(int) ((long) i * all.length / KMERS)], k);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KMERS)
+    public void getLeftNucleotide(Blackhole bh) {
+        for (ShortKmer kmer : kmers) {
+            bh.consume(HashMapOperations.getLeftNucleotide(hm, kmer, 1));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KMERS)
+    public void getRightNucleotide(Blackhole bh) {
+        for (ShortKmer kmer : kmers) {
+            bh.consume(HashMapOperations.getRightNucleotide(hm, kmer, 1));
+        }
+    }
+}
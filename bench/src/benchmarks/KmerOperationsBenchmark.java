@@ -0,0 +1,81 @@
+package benchmarks;
+
+import algo.KmerOperations;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Neighbours and reverse complement of k-mers, time is given per k-mer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KmerOperationsBenchmark {
+    static final int KMERS = 1 << 16;
+
+    @Param({"31"})
+    int k;
+
+    @Param({SyntheticReads.DEFAULT_SOURCE})
+    String source;
+
+    long[] kmers;
+    final long[] buffer = new long[8];
+
+    @Setup
+    public void setup() throws IOException {
+        byte[][] reads = SyntheticReads.generate(source, KMERS / (SyntheticReads.READ_LENGTH - k + 1) + 1);
+        long[] all = SyntheticReads.canonicalKmers(reads, k);
+        kmers = new long[KMERS];
+        System.arraycopy(all, 0, kmers, 0, KMERS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KMERS)
+    public long rc() {
+        long sum = 0;
+        for (long kmer : kmers) {
+            sum += KmerOperations.rc(kmer, k);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KMERS)
+    public void possibleNeighbours(Blackhole bh) {
+        for (long kmer : kmers) {
+            bh.consume(KmerOperations.possibleNeighbours(kmer, k));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KMERS)
+    public void rightNeighbours(Blackhole bh) {
+        for (long kmer : kmers) {
+            bh.consume(KmerOperations.rightNeighbours(kmer, k));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KMERS)
+    public void leftNeighbours(Blackhole bh) {
+        for (long kmer : kmers) {
+            bh.consume(KmerOperations.leftNeighbours(kmer, k));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KMERS)
+    public void possibleNeighboursToBuffer(Blackhole bh) {
+        for (long kmer : kmers) {
+            KmerOperations.possibleNeighbours(kmer, k, buffer);
+            bh.consume(buffer[7]);
+        }
+    }
+}
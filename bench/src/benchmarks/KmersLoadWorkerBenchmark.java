@@ -0,0 +1,64 @@
+package benchmarks;
+
+import io.KmersLoadWorker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of (long kmer, short freq) records by KmersLoadWorker, time is given per record.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KmersLoadWorkerBenchmark {
+    static final int RECORDS = 1 << 16;
+
+    @Param({"31"})
+    int k;
+
+    @Param({SyntheticReads.DEFAULT_SOURCE})
+    String source;
+
+    @Param({"false", "true"})
+    boolean direct;
+
+    ByteBuffer range;
+    ConsumingWorker worker;
+
+    static class ConsumingWorker extends KmersLoadWorker {
+        Blackhole bh;
+
+        @Override
+        public void processKmer(long kmer, short freq) {
+            bh.consume(kmer);
+            bh.consume(freq);
+        }
+    }
+
+    @Setup
+    public void setup(Blackhole bh) throws IOException {
+        byte[][] reads = SyntheticReads.generate(source, RECORDS / (SyntheticReads.READ_LENGTH - k + 1) + 1);
+        long[] kmers = SyntheticReads.canonicalKmers(reads, k);
+        range = direct ? ByteBuffer.allocateDirect(RECORDS * 10) : ByteBuffer.allocate(RECORDS * 10);
+        for (int i = 0; i < RECORDS; i++) {
+            range.putLong(kmers[i]);
+            range.putShort((short) (i % 100 + 1));
+        }
+        worker = new ConsumingWorker();
+        worker.bh = bh;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void process() {
+        range.clear();
+        worker.process(range);
+    }
+}
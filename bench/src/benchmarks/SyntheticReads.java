@@ -0,0 +1,76 @@
+package benchmarks;
+
+import ru.ifmo.genetics.dna.Dna;
+import ru.ifmo.genetics.io.ReadersUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic reads sampled from sequences of test_data files with substitution errors.
+ * Random generator has a fixed seed, so every benchmark run works with the same data.
+ */
+public class SyntheticReads {
+    public static final String DEFAULT_SOURCE = "test_data/meta_test_1.fa";
+    public static final int READ_LENGTH = 80;
+    static final double ERROR_RATE = 0.01;
+    static final long SEED = 42;
+
+    /**
+     * @return reads as 2-bit nucleotide codes (as in DnaTools)
+     */
+    public static byte[][] generate(String sourceFile, int readsNumber) throws IOException {
+        List<byte[]> sequences = new ArrayList<byte[]>();
+        for (Dna dna : ReadersUtils.readDnaLazy(new File(sourceFile))) {
+            if (dna.length() >= READ_LENGTH) {
+                byte[] nucs = new byte[dna.length()];
+                for (int i = 0; i < nucs.length; i++) {
+                    nucs[i] = dna.nucAt(i);
+                }
+                sequences.add(nucs);
+            }
+        }
+        if (sequences.isEmpty()) {
+            throw new IOException("No sequences of length >= " + READ_LENGTH + " in " + sourceFile);
+        }
+
+        Random random = new Random(SEED);
+        byte[][] reads = new byte[readsNumber][READ_LENGTH];
+        for (int r = 0; r < readsNumber; r++) {
+            byte[] seq = sequences.get(random.nextInt(sequences.size()));
+            int start = random.nextInt(seq.length - READ_LENGTH + 1);
+            boolean reverse = random.nextBoolean();
+            for (int i = 0; i < READ_LENGTH; i++) {
+                reads[r][i] = reverse ? (byte) (3 - seq[start + READ_LENGTH - 1 - i]) : seq[start + i];
+                if (random.nextDouble() < ERROR_RATE) {
+                    reads[r][i] = (byte) ((reads[r][i] + 1 + random.nextInt(3)) & 3);
+                }
+            }
+        }
+        return reads;
+    }
+
+    /**
+     * @return canonical k-mers of all reads in order of occurrence
+     */
+    public static long[] canonicalKmers(byte[][] reads, int k) {
+        long mask = (1L << (2 * k)) - 1;
+        int rcShift = 2 * k - 2;
+        long[] kmers = new long[reads.length * (READ_LENGTH - k + 1)];
+        int n = 0;
+        for (byte[] read : reads) {
+            long fw = 0, rc = 0;
+            for (int i = 0; i < read.length; i++) {
+                fw = ((fw << 2) | read[i]) & mask;
+                rc = (rc >>> 2) | ((long) (3 - read[i]) << rcShift);
+                if (i + 1 >= k) {
+                    kmers[n++] = Math.min(fw, rc);
+                }
+            }
+        }
+        return kmers;
+    }
+}
@@ -4,103 +4,100 @@ import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import ru.ifmo.genetics.dna.Dna;
 import ru.ifmo.genetics.dna.DnaTools;
 import ru.ifmo.genetics.dna.kmers.ShortKmer;
-import ru.ifmo.genetics.structures.map.*;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import structures.DeBruijnGraph;
 import structures.Sequence;
 
-import java.util.Iterator;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * Task class to search and add simple sequences to queue <code>sequences</code>.
+ * Task class to search simple sequences starting in k-mers <code>starts[from..to)</code>.
+ * Sequences are looked for from both ends, but kept only from the minimal of end k-mers,
+ * so tasks for different start k-mers don't need any synchronization.
+ * Found sequences are in the order of start k-mers, fw direction before rc one.
  */
 public class AddSequencesShiftingRightTask implements Runnable {
 
+    final DeBruijnGraph graph;
     final BigLong2ShortHashMap hm;
-    final Long2ShortHashMap openHM;
+    final long[] starts;
+    final int from, to;
     final int k;
-    int freqThreshold;
+    final long mask;
     int lenThreshold;
-    final Queue<Sequence> sequences;
-    final LongOpenHashSet used;
-
-    public AddSequencesShiftingRightTask(BigLong2ShortHashMap hm,
-                                         Long2ShortHashMap openHM,
-                                         int k, int freqThreshold, int lenThreshold,
-                                         Queue<Sequence> sequences, LongOpenHashSet used) {
-        this.hm = hm;
-        this.openHM = openHM;
-        this.k = k;
-        this.freqThreshold = freqThreshold;
+    final List<Sequence> found = new ArrayList<Sequence>();
+    final LongOpenHashSet used = new LongOpenHashSet();
+
+    public AddSequencesShiftingRightTask(DeBruijnGraph graph,
+                                         long[] starts, int from, int to,
+                                         int lenThreshold) {
+        this.graph = graph;
+        this.hm = graph.hm;
+        this.starts = starts;
+        this.from = from;
+        this.to = to;
+        this.k = graph.getK();
+        mask = (1L << (2 * k)) - 1;
         this.lenThreshold = lenThreshold;
-        this.sequences = sequences;
-        this.used = used;
     }
 
     @Override
     public void run() {
-        Iterator<MutableLongShortEntry> it = openHM.entryIterator();
-        while (it.hasNext()) {
-            MutableLongShortEntry entry = it.next();
-            long key = entry.getKey();
-            short value = entry.getValue();
-            if (value <= freqThreshold) {
-                continue;
-            }
+        for (int i = from; i < to; i++) {
+            long key = starts[i];
+            long keyRc = KmerOperations.rc(key, k);
+            processIfLeft(key, keyRc);
+            processIfLeft(keyRc, key);
+        }
+    }
 
-            ShortKmer kmerF = new ShortKmer(key, k);
-            ShortKmer[] kmers = new ShortKmer[]{kmerF, kmerF.rc()};
-
-            for (ShortKmer kmer : kmers) {
-                boolean isLeft = false;
-                byte nuc = HashMapOperations.getLeftNucleotide(hm, kmer, freqThreshold);
-                if (nuc < 0) {
-                    isLeft = true;
-                } else {
-                    byte rightNuc = kmer.nucAt(k - 1);
-                    kmer.shiftLeft(nuc);
-                    if (HashMapOperations.getRightNucleotide(hm, kmer, freqThreshold) < 0) {
-                        isLeft = true;
-                    }
-                    kmer.shiftRight(rightNuc);
-                }
+    public List<Sequence> getFoundSequences() {
+        return found;
+    }
 
-                if (isLeft) {
-                    processSequence(kmer);
-                }
-            }
+    /**
+     * Processes sequence starting from k-mer, if k-mer can't be extended to the left unambiguously.
+     */
+    private void processIfLeft(long fw, long rc) {
+        if (graph.isSequenceStart(fw, rc)) {
+            processSequence(fw, rc);
         }
     }
 
-    private void processSequence(ShortKmer startKmer) {
-        int value = hm.getWithZero(startKmer.toLong());
+    private void processSequence(long startFw, long startRc) {
+        long startKmer = Math.min(startFw, startRc);
+        int value = hm.getWithZero(startKmer);
 
-        StringBuilder sequenceSB = new StringBuilder(startKmer.toString());
+        StringBuilder sequenceSB = new StringBuilder(new ShortKmer(startFw, k).toString());
         long seqWeight = value;
         int minWeight = value, maxWeight = value;
 
-        ShortKmer kmer = new ShortKmer(startKmer);
+        long fw = startFw, rc = startRc;
+        int shift = 2 * k - 2;
 
         while (true) {
-            byte rightNuc = HashMapOperations.getRightNucleotide(hm, kmer, freqThreshold);
+            byte rightNuc = graph.getRightNucleotide(fw, rc);
             if (rightNuc < 0) {
                 break;
             }
-            kmer.shiftRight(rightNuc);
-            byte leftNuc = HashMapOperations.getLeftNucleotide(hm, kmer, freqThreshold);
+            fw = ((fw << 2) | rightNuc) & mask;
+            rc = (rc >>> 2) | ((long) (3 - rightNuc) << shift);
+            byte leftNuc = graph.getLeftNucleotide(fw, rc);
             if (leftNuc < 0) {
                 break;
             }
 
             sequenceSB.append(DnaTools.toChar(rightNuc));
-            value = hm.getWithZero(kmer.toLong());
+            value = hm.getWithZero(Math.min(fw, rc));
             seqWeight += value;
             minWeight = Math.min(minWeight, value);
             maxWeight = Math.max(maxWeight, value);
         }
 
         if (sequenceSB.length() >= lenThreshold) {
-            long stKmer = startKmer.toLong();
-            long endKmer = kmer.toLong();
+            long stKmer = startKmer;
+            long endKmer = Math.min(fw, rc);
 
             // we want to print one sequence of two (fw and rc) - one with min long value of start kmer
             if (stKmer > endKmer) {
@@ -108,16 +105,13 @@ public class AddSequencesShiftingRightTask implements Runnable {
             }
 
             if (stKmer == endKmer) {  // print any sequence, but only one of them
-                synchronized (used) {
-                    if (used.contains(stKmer) || used.contains(endKmer)) {
-                        // sequence was already printed
-                        return;
-                    } else {
-                        used.add(stKmer);
-                    }
+                // both of them start in the same k-mer, so they are found by this task
+                if (!used.add(stKmer)) {
+                    // sequence was already printed
+                    return;
                 }
             }
-            sequences.add(new Sequence(new Dna(sequenceSB.toString()),
+            found.add(new Sequence(new Dna(sequenceSB.toString()),
                     (int) (seqWeight / (sequenceSB.length() - k + 1)), minWeight, maxWeight));
         }
     }
@@ -14,6 +14,7 @@ import ru.ifmo.genetics.utils.Misc;
 import ru.ifmo.genetics.utils.NumUtils;
 import ru.ifmo.genetics.utils.tool.Tool;
 import structures.ConnectedComponent;
+import structures.DeBruijnGraph;
 import structures.Sequence;
 
 import java.io.FileNotFoundException;
@@ -24,8 +25,10 @@ import static io.IOUtils.withP;
 
 public class ComponentsBuilder {
 
-	public static List<ConnectedComponent> splitStrategy(int alg, BigLong2ShortHashMap hm, Deque<Sequence> sequences,
-			int k, int b1, int b2, String statFP, Logger logger, int availableProcessors) throws FileNotFoundException {
+	public static List<ConnectedComponent> splitStrategy(int alg, DeBruijnGraph graph, Deque<Sequence> sequences,
+			int k, int b1, int b2, String statFP, Logger logger, int availableProcessors)
+			throws FileNotFoundException, InterruptedException {
+		BigLong2ShortHashMap hm = graph.hm;
 
 		ComponentsBuilder builder = new ComponentsBuilder(k, b1, b2, availableProcessors, statFP, logger);
 		switch (alg) {
@@ -45,7 +48,7 @@ public class ComponentsBuilder {
 			builder.runSeptemberAlg(hm, sequences);
 			break;
 		default:
-			builder.run(hm);
+			builder.run(graph);
 			break;
 		}
 		return builder.ans;
@@ -55,6 +58,7 @@ public class ComponentsBuilder {
 	final private NonBlockingQueueExecutor executor;
 	final int k;
 	final int b1, b2;
+	final int availableProcessors;
 	final String statFP;
 	final private Logger logger;
 
@@ -64,6 +68,7 @@ public class ComponentsBuilder {
 		this.k = k;
 		this.b1 = b1;
 		this.b2 = b2;
+		this.availableProcessors = availableProcessors;
 		this.statFP = statFP;
 		this.logger = logger;
 	}
@@ -81,6 +86,7 @@ public class ComponentsBuilder {
 		}
 		Tool.info(logger, "Kmers in graph: " + String.valueOf(kmersLeft));
 		Random r = new Random();
+		long[] neighbours = new long[8];
 		while (kmersLeft > 0) {
 			long kmer = kmers[r.nextInt(kmers.length)];
 			short value = hm.get(kmer);
@@ -93,7 +99,9 @@ public class ComponentsBuilder {
 					long cur = q.poll();
 					comp.add(cur);
 					kmersLeft--;
-					for (long neighbour : neighboursInGraph(hm, cur, k)) {
+					int n = neighboursInGraph(hm, cur, k, neighbours);
+					for (int i = 0; i < n; i++) {
+						long neighbour = neighbours[i];
 						short neighbourValue = hm.get(neighbour);
 						hm.put(neighbour, (short) (neighbourValue - 1));
 						q.add(neighbour);
@@ -124,6 +132,7 @@ public class ComponentsBuilder {
 		}
 		Tool.info(logger, "Kmers in graph: " + String.valueOf(kmersLeft));
 		Random r = new Random();
+		long[] neighbours = new long[8];
 		while (kmersLeft > 0) {
 			long kmer = kmers[r.nextInt(kmers.length)];
 			short value = hm.get(kmer);
@@ -136,7 +145,9 @@ public class ComponentsBuilder {
 					long cur = q.poll();
 					comp.add(cur);
 					kmersLeft--;
-					for (long neighbour : neighboursInGraph(hm, cur, k)) {
+					int n = neighboursInGraph(hm, cur, k, neighbours);
+					for (int i = 0; i < n; i++) {
+						long neighbour = neighbours[i];
 						short neighbourValue = hm.get(neighbour);
 						hm.put(neighbour, (short) -neighbourValue);
 						q.add(neighbour);
@@ -157,6 +168,7 @@ public class ComponentsBuilder {
 
 	private void runSeptemberAlg(BigLong2ShortHashMap hm, Deque<Sequence> sequences) {
 		Random r = new Random();
+		long[] neighbours = new long[8];
 		int hmSize = (int) hm.size();
 		Iterator<MutableLongShortEntry> it = hm.entryIterator();
 		Long[] kmers = new Long[hmSize];
@@ -182,7 +194,8 @@ public class ComponentsBuilder {
 				ans.add(comp);
 				Tool.info(logger, "Put component with size: " + comp.size);
 			} else {
-				for (long kmer: comp.kmers) {
+				for (int i = 0; i < comp.kmers.size(); i++) {
+					long kmer = comp.kmers.getLong(i);
 					hm.put(kmer, (short) -hm.get(kmer));
 					kmersLeft++;
 				}
@@ -201,10 +214,11 @@ public class ComponentsBuilder {
 					long cur = q.poll();
 					comp.add(cur);
 					kmersLeft--;
-					long[] neighbours = neighboursInGraph(hm, cur, k);
-					if (comp.size >= b2 && neighbours.length >= 2)
+					int n = neighboursInGraph(hm, cur, k, neighbours);
+					if (comp.size >= b2 && n >= 2)
 						continue;
-					for (long neighbour : neighbours) {
+					for (int i = 0; i < n; i++) {
+						long neighbour = neighbours[i];
 						short neighbourValue = hm.get(neighbour);
 						hm.put(neighbour, (short) -neighbourValue);
 						q.add(neighbour);
@@ -224,7 +238,23 @@ public class ComponentsBuilder {
 	}
 
 	public static long[] neighboursInGraph(BigLong2ShortHashMap hm, long kmer, int k) {
-		return Arrays.stream(KmerOperations.possibleNeighbours(kmer, k)).filter(e -> hm.get(e) > 0).toArray();
+		long[] neighbours = new long[8];
+		return Arrays.copyOf(neighbours, neighboursInGraph(hm, kmer, k, neighbours));
+	}
+
+	/**
+	 * Writes neighbours of kmer present in graph to the beginning of buffer (of length at least 8).
+	 * @return number of neighbours written
+	 */
+	public static int neighboursInGraph(Long2ShortHashMapInterface hm, long kmer, int k, long[] buffer) {
+		KmerOperations.possibleNeighbours(kmer, k, buffer);
+		int n = 0;
+		for (int i = 0; i < 8; i++) {
+			if (hm.get(buffer[i]) > 0) {
+				buffer[n++] = buffer[i];
+			}
+		}
+		return n;
 	}
 
 	private void runRandomGroupStrategy(BigLong2ShortHashMap hm) {
@@ -306,13 +336,19 @@ public class ComponentsBuilder {
 		}
 	}
 
-	private void run(BigLong2ShortHashMap hm) throws FileNotFoundException {
+	private void run(DeBruijnGraph graph) throws FileNotFoundException, InterruptedException {
 		Tool.info(logger, "First iteration...");
 		Timer t = new Timer();
+		BigLong2ShortHashMap hm = graph.hm;
 		long hmSize = hm.size();
 		int curFreqThreshold = 1; // current component is formed of k-mers with
 									// frequency >= 1
-		List<ConnectedComponent> newComps = findAllComponents(hm, k, b2, curFreqThreshold);
+		List<ConnectedComponent> newComps;
+		if (ParallelComponentsFinder.canBeUsed(hm)) {
+			newComps = ParallelComponentsFinder.findAllComponents(graph, b1, b2, curFreqThreshold, availableProcessors);
+		} else {
+			newComps = findAllComponents(hm, graph, k, b2, curFreqThreshold);
+		}
 
 		int small = 0, ok = 0, big = 0;
 		long smallK = 0, okK = 0;
@@ -350,6 +386,7 @@ public class ComponentsBuilder {
 				+ "after it = " + Misc.usedMemoryAsString());
 
 		hm = null; // for cleaning
+		graph = null;
 		newComps = null;
 
 		Tool.debug(logger, "Memory used after cleaning = " + Misc.usedMemoryAsString() + ", final time = " + t);
@@ -406,7 +443,7 @@ public class ComponentsBuilder {
 		@Override
 		public void run() {
 			int curFreqThreshold = component.usedFreqThreshold + 1;
-			List<ConnectedComponent> newComps = findAllComponents(component.nextHM, k, b2, curFreqThreshold);
+			List<ConnectedComponent> newComps = findAllComponents(component.nextHM, null, k, b2, curFreqThreshold);
 			for (ConnectedComponent comp : newComps) {
 				if (comp.size < b1) {
 					// skipping
@@ -435,17 +472,19 @@ public class ComponentsBuilder {
 
 	/**
 	 * Assuming running in one thread for current hm!
+	 * If graph isn't null, it must be built on hm with zero threshold before any changes of hm.
 	 */
-	private static List<ConnectedComponent> findAllComponents(Long2ShortHashMapInterface hm, int k, int b2,
-			int curFreqThreshold) {
+	private static List<ConnectedComponent> findAllComponents(Long2ShortHashMapInterface hm, DeBruijnGraph graph,
+			int k, int b2, int curFreqThreshold) {
 		List<ConnectedComponent> ans = new ArrayList<ConnectedComponent>();
 		LongArrayFIFOQueue queue = new LongArrayFIFOQueue((int) Math.min(1 << 16, hm.size() / 2));
+		long[] neighbours = new long[8];
 
 		Iterator<MutableLongShortEntry> iterator = hm.entryIterator();
 		while (iterator.hasNext()) {
 			MutableLongShortEntry startKmer = iterator.next();
 			if (startKmer.getValue() > 0) { // i.e. if not precessed
-				ConnectedComponent comp = bfs(hm, startKmer.getKey(), queue, k, b2, curFreqThreshold);
+				ConnectedComponent comp = bfs(hm, graph, startKmer.getKey(), queue, neighbours, k, b2, curFreqThreshold);
 				ans.add(comp);
 			}
 		}
@@ -459,8 +498,8 @@ public class ComponentsBuilder {
 	 * ConnectedComponent.kmers, else a subset of hm is stored to
 	 * ConnectedComponent.nextHM structure.
 	 */
-	private static ConnectedComponent bfs(Long2ShortHashMapInterface hm, long startKmer, LongArrayFIFOQueue queue,
-			int k, int b2, int curFreqThreshold) {
+	private static ConnectedComponent bfs(Long2ShortHashMapInterface hm, DeBruijnGraph graph, long startKmer,
+			LongArrayFIFOQueue queue, long[] neighbours, int k, int b2, int curFreqThreshold) {
 
 		ConnectedComponent comp = new ConnectedComponent();
 		comp.usedFreqThreshold = curFreqThreshold;
@@ -477,7 +516,15 @@ public class ComponentsBuilder {
 		while (queue.size() > 0) {
 			long kmer = queue.dequeue();
 
-			for (long neighbour : KmerOperations.possibleNeighbours(kmer, k)) {
+			int n;
+			if (graph != null) {
+				n = graph.neighbours(kmer, neighbours);
+			} else {
+				KmerOperations.possibleNeighbours(kmer, k, neighbours);
+				n = neighbours.length;
+			}
+			for (int i = 0; i < n; i++) {
+				long neighbour = neighbours[i];
 				value = hm.get(neighbour);
 				if (value > 0) { // i.e. if not precessed
 					queue.enqueue(neighbour);
@@ -488,7 +535,8 @@ public class ComponentsBuilder {
 						if (comp.size > b2) {
 							alreadyBigComp = true;
 							comp.nextHM = new BigLong2ShortHashMap(4, 13);
-							for (long kk : comp.kmers) {
+							for (int j = 0; j < comp.kmers.size(); j++) {
+								long kk = comp.kmers.getLong(j);
 								value = (short) -hm.get(kk);
 								assert value > 0;
 								if (value >= curFreqThreshold + 1) {
@@ -0,0 +1,181 @@
+package algo;
+
+import structures.FeaturesVector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Calculates distance matrix between features vectors with the given metric in many threads.<br></br>
+ * Pairs of vectors are processed in tiles of BLOCK_SIZE x BLOCK_SIZE vectors, every tile goes over components
+ * in chunks of CHUNK_SIZE, so chunks of the tile's vectors stay in cache while all pairs of the tile are processed.
+ * Tiles above the diagonal are processed in parallel by fork-join tasks.<br></br>
+ * If the metric is a SparseMetric and the average density of vectors is less than its sparseDensity(),
+ * pairs are calculated by merging their non-zero values instead, which takes time proportional
+ * to the number of non-zero values.<br></br>
+ * Matrix can be updated incrementally: only pairs with a vector which isn't known are calculated then.
+ */
+public class DistanceMatrix {
+    static final int BLOCK_SIZE = 8;
+    static final int CHUNK_SIZE = 1 << 11;     // multiple of 64 for bitsets in Metric.Jaccard
+
+    final FeaturesVector[] vectors;
+    final Metric metric;
+    final SparseMetric sparseMetric;    // the same metric, or null if it doesn't support sparse vectors
+    final int n, length;
+    final double[][] matrix;
+    final boolean[] known;
+    boolean sparse;
+
+    private DistanceMatrix(FeaturesVector[] vectors, Metric metric, double[][] matrix, boolean[] known) {
+        this.vectors = vectors;
+        this.metric = metric;
+        sparseMetric = (metric instanceof SparseMetric) ? (SparseMetric) metric : null;
+        this.matrix = matrix;
+        this.known = known;
+        n = vectors.length;
+        length = (n == 0) ? 0 : vectors[0].length;
+        for (FeaturesVector vector : vectors) {
+            if (vector.length != length) {
+                throw new IllegalArgumentException("Vectors have different lengths " + length + " and " + vector.length);
+            }
+        }
+    }
+
+    /**
+     * @param vectors dense or sparse vectors, they are converted to the chosen representation
+     * @param metric new metric instance, it's prepared for vectors here
+     * @return symmetric matrix with zero diagonal
+     */
+    public static double[][] calculate(FeaturesVector[] vectors, Metric metric, int availableProcessors) {
+        double[][] matrix = new double[vectors.length][vectors.length];
+        new DistanceMatrix(vectors, metric, matrix, new boolean[vectors.length]).calculate(availableProcessors);
+        return matrix;
+    }
+
+    /**
+     * Calculates distances for pairs of vectors where at least one vector isn't known,
+     * distances between known vectors are kept.
+     * @param matrix matrix with distances between known vectors, it's updated in place
+     * @param known known[i] is true if distances between i-th vector and other known vectors are in matrix
+     */
+    public static void update(FeaturesVector[] vectors, Metric metric, double[][] matrix, boolean[] known,
+                              int availableProcessors) {
+        new DistanceMatrix(vectors, metric, matrix, known).calculate(availableProcessors);
+    }
+
+    private void calculate(int availableProcessors) {
+        long nonZeros = 0;
+        for (FeaturesVector vector : vectors) {
+            nonZeros += vector.nonZeros();
+        }
+        sparse = sparseMetric != null && nonZeros < (double) n * length * sparseMetric.sparseDensity();
+
+        if (sparse) {
+            FeaturesVector[] sparseVectors = new FeaturesVector[n];
+            for (int i = 0; i < n; i++) {
+                sparseVectors[i] = vectors[i].toSparse();
+            }
+            sparseMetric.prepareSparse(sparseVectors);
+        } else {
+            long[][] denseVectors = new long[n][];
+            for (int i = 0; i < n; i++) {
+                denseVectors[i] = vectors[i].toDense();
+            }
+            metric.prepare(denseVectors);
+        }
+
+        boolean[] knownBlocks = new boolean[(n + BLOCK_SIZE - 1) / BLOCK_SIZE];
+        for (int b = 0; b < knownBlocks.length; b++) {
+            knownBlocks[b] = true;
+            for (int i = b * BLOCK_SIZE; i < Math.min((b + 1) * BLOCK_SIZE, n); i++) {
+                knownBlocks[b] &= known[i];
+            }
+        }
+        List<int[]> tiles = new ArrayList<int[]>();
+        for (int i = 0; i < n; i += BLOCK_SIZE) {
+            for (int j = i; j < n; j += BLOCK_SIZE) {
+                if (!knownBlocks[i / BLOCK_SIZE] || !knownBlocks[j / BLOCK_SIZE]) {
+                    tiles.add(new int[]{i, j});
+                }
+            }
+        }
+
+        if (tiles.isEmpty()) {
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(availableProcessors);
+        try {
+            pool.invoke(new TilesTask(tiles, 0, tiles.size()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    class TilesTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final List<int[]> tiles;
+        final int from, to;
+
+        TilesTask(List<int[]> tiles, int from, int to) {
+            this.tiles = tiles;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                int[] tile = tiles.get(from);
+                processTile(tile[0], tile[1]);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new TilesTask(tiles, from, mid), new TilesTask(tiles, mid, to));
+        }
+    }
+
+    /**
+     * Calculates distances between vectors [i0, i0 + BLOCK_SIZE) and [j0, j0 + BLOCK_SIZE), i0 <= j0,
+     * except pairs of known vectors.
+     */
+    private void processTile(int i0, int j0) {
+        int i1 = Math.min(i0 + BLOCK_SIZE, n), j1 = Math.min(j0 + BLOCK_SIZE, n);
+        double[][] sums = new double[BLOCK_SIZE][BLOCK_SIZE];
+
+        if (sparse) {
+            for (int i = i0; i < i1; i++) {
+                for (int j = Math.max(j0, i + 1); j < j1; j++) {
+                    if (!known[i] || !known[j]) {
+                        sums[i - i0][j - j0] = sparseMetric.sparseKernel(i, j);
+                    }
+                }
+            }
+        } else {
+            for (int from = 0; from < length; from += CHUNK_SIZE) {
+                int to = Math.min(from + CHUNK_SIZE, length);
+                for (int i = i0; i < i1; i++) {
+                    for (int j = Math.max(j0, i + 1); j < j1; j++) {
+                        if (!known[i] || !known[j]) {
+                            sums[i - i0][j - j0] += metric.kernel(i, j, from, to);
+                        }
+                    }
+                }
+            }
+        }
+
+        for (int i = i0; i < i1; i++) {
+            for (int j = Math.max(j0, i + 1); j < j1; j++) {
+                if (known[i] && known[j]) {
+                    continue;
+                }
+                double d = metric.distance(i, j, sums[i - i0][j - j0]);
+                matrix[i][j] = d;
+                matrix[j][i] = d;
+            }
+        }
+    }
+}
@@ -199,7 +199,11 @@ public class FullHeatMap {
 
 
     /**
-     * Clusters objects, works in O(n^3) time.
+     * Clusters objects by average linkage (UPGMA), works in O(n^2) time for usual matrices.<br></br>
+     * Distances between clusters are updated by Lance-Williams formula, and for every cluster
+     * its nearest neighbour among clusters in next slots is kept, so the closest pair is found in O(n) time.
+     * Neighbours are searched again only for clusters which neighbour was merged.
+     * Pairs are merged in the same order as by scanning all pairs: the closest one, the first one on ties.
      * @return the resulting root node.
      */
     public Node clusterObjects() {
@@ -214,43 +218,36 @@ public class FullHeatMap {
         }
 
         double[][] dist = new double[n][n];
-        int[] g1 = new int[n];
-        int[] g2 = new int[n];
-
         for (int i = 0; i < n; i++) {
-            getGroup(nodes[i], g1, 0);
-            dist[i][i] = 0;
             for (int j = i + 1; j < n; j++) {
-                getGroup(nodes[j], g2, 0);
-                dist[i][j] = dist[j][i] = distanceBetweenGroups(g1, 1, g2, 1);
+                dist[i][j] = dist[j][i] = distMatrix[i][j];
             }
         }
+        int[] nearest = new int[n];
+        double[] nearestDist = new double[n];
+        for (int i = 0; i < n; i++) {
+            findNearest(i, nodes, dist, nearest, nearestDist);
+        }
 
         // clustering
         int count = n;
         Node root = (n > 0) ? nodes[0] : null;
         while (count > 1) {
-//            System.out.println("Count = " + count);
-
             double minDist = Double.MAX_VALUE;
-            int i = -1, j = -1;
-
+            int i = -1;
             for (int ii = 0; ii < n; ii++) {
-                for (int jj = ii + 1; jj < n; jj++) {
-                    if (nodes[ii] != null && nodes[jj] != null && dist[ii][jj] < minDist) {
-                        minDist = dist[ii][jj];
-                        i = ii;
-                        j = jj;
-                    }
+                if (nodes[ii] != null && nearestDist[ii] < minDist) {
+                    minDist = nearestDist[ii];
+                    i = ii;
                 }
             }
 
             if (i == -1 || minDist < 0) {
                 throw new RuntimeException("Internal error. Wrong minDist index.");
             }
+            int j = nearest[i];
 
             // merging node i and j
-//            System.out.println("Merging " + i + " and " + j + ", min dist = " + minDist);
             root = new Node();
             root.left = nodes[i];
             root.right = nodes[j];
@@ -263,45 +260,41 @@ public class FullHeatMap {
             // updating
             nodes[i] = root;
             nodes[j] = null;
-            int g1n = getGroup(root, g1, 0);
-            for (int ii = 0; ii < n; ii++) {
-                dist[ii][j] = dist[j][ii] = -1;
-                if (ii != i) {
-                    int g2n = getGroup(nodes[ii], g2, 0);
-                    dist[ii][i] = dist[i][ii] = distanceBetweenGroups(g1, g1n, g2, g2n);
+            for (int k = 0; k < n; k++) {
+                if (nodes[k] != null && k != i) {
+                    dist[i][k] = dist[k][i] = (root.left.leafs * dist[i][k] + root.right.leafs * dist[j][k])
+                            / root.leafs;
+                }
+            }
+            for (int k = 0; k < n; k++) {
+                if (nodes[k] == null) {
+                    continue;
+                }
+                if (k == i || nearest[k] == i || nearest[k] == j) {
+                    findNearest(k, nodes, dist, nearest, nearestDist);
+                } else if (k < i && (dist[k][i] < nearestDist[k] || dist[k][i] == nearestDist[k] && i < nearest[k])) {
+                    nearest[k] = i;
+                    nearestDist[k] = dist[k][i];
                 }
             }
             count--;
         }
 
-//        System.out.println("Done");
         return root;
     }
 
-    protected double distanceBetweenGroups(int[] g1, int g1n, int[] g2, int g2n) {
-        if (g1n == 0 || g2n == 0) {
-            return -1;
-        }
-        double sum = 0;
-        for (int i = 0; i < g1n; i++) {
-            for (int j = 0; j < g2n; j++) {
-                sum += distMatrix[g1[i]][g2[j]];
+    /**
+     * Finds the closest cluster to cluster i among clusters in slots after i, the first one on ties.
+     */
+    static void findNearest(int i, Node[] nodes, double[][] dist, int[] nearest, double[] nearestDist) {
+        nearest[i] = -1;
+        nearestDist[i] = Double.MAX_VALUE;
+        for (int j = i + 1; j < nodes.length; j++) {
+            if (nodes[j] != null && dist[i][j] < nearestDist[i]) {
+                nearestDist[i] = dist[i][j];
+                nearest[i] = j;
             }
         }
-        return sum / g1n / g2n;
-    }
-
-    int getGroup(Node n, int[] e, int first) {
-        if (n == null) {
-            return 0;
-        }
-        if (n.no >= 0) {
-            e[first] = n.no;
-            return 1;
-        }
-        int c = getGroup(n.left,  e, first);
-        c    += getGroup(n.right, e, first + c);
-        return c;
     }
 
     protected void renumber(Node node, int first) {
@@ -11,13 +11,26 @@ import java.util.Iterator;
 public class HashMapOperations {
 
     public static byte getLeftNucleotide(BigLong2ShortHashMap hm, ShortKmer kmer, int freqThreshold) {
-        byte rightNuc = kmer.nucAt(kmer.length() - 1);
+        return getLeftNucleotide(hm, kmer.fwKmer(), kmer.rcKmer(), kmer.length(), freqThreshold);
+    }
+
+    public static byte getRightNucleotide(BigLong2ShortHashMap hm, ShortKmer kmer, int freqThreshold) {
+        return getRightNucleotide(hm, kmer.fwKmer(), kmer.rcKmer(), kmer.length(), freqThreshold);
+    }
+
+    /**
+     * @param fw forward representation of k-mer
+     * @param rc reverse-complement representation of k-mer
+     * @return the only nucleotide that can be added to the left of fw to get k-mer with frequency
+     *         greater than freqThreshold, -1 if there are no such nucleotides, -2 if there are several
+     */
+    public static byte getLeftNucleotide(BigLong2ShortHashMap hm, long fw, long rc, int k, int freqThreshold) {
+        long mask = (1L << (2 * k)) - 1;
+        int shift = 2 * k - 2;
+        long fwBase = fw >>> 2, rcBase = (rc << 2) & mask;
         byte ansNuc = -1;
         for (byte nuc = 0; nuc <= 3; nuc++) {
-            kmer.shiftLeft(nuc);
-            long neighbourRepr = kmer.toLong();
-            kmer.shiftRight(rightNuc);
-
+            long neighbourRepr = Math.min(fwBase | ((long) nuc << shift), rcBase | (3 - nuc));
             if (hm.get(neighbourRepr) > freqThreshold) {
                 if (ansNuc > -1) {
                     return -2;
@@ -28,14 +41,16 @@ public class HashMapOperations {
         return ansNuc;
     }
 
-    public static byte getRightNucleotide(BigLong2ShortHashMap hm, ShortKmer kmer, int freqThreshold) {
-        byte leftNuc = kmer.nucAt(0);
+    /**
+     * The same as getLeftNucleotide, but for nucleotides added to the right of fw.
+     */
+    public static byte getRightNucleotide(BigLong2ShortHashMap hm, long fw, long rc, int k, int freqThreshold) {
+        long mask = (1L << (2 * k)) - 1;
+        int shift = 2 * k - 2;
+        long fwBase = (fw << 2) & mask, rcBase = rc >>> 2;
         byte ansNuc = -1;
         for (byte nuc = 0; nuc <= 3; nuc++) {
-            kmer.shiftRight(nuc);
-            long neighbourRepr = kmer.toLong();
-            kmer.shiftLeft(leftNuc);
-
+            long neighbourRepr = Math.min(fwBase | nuc, rcBase | ((long) (3 - nuc) << shift));
             if (hm.get(neighbourRepr) > freqThreshold) {
                 if (ansNuc > -1) {
                     return -2;
@@ -68,9 +83,9 @@ public class HashMapOperations {
                 continue;
             }
 
-            ShortKmer kmer = new ShortKmer(key, k);
-            if (getLeftNucleotide(hm, kmer, freqThreshold) == -2 ||
-                    getRightNucleotide(hm, kmer, freqThreshold) == -2) {
+            long rc = KmerOperations.rc(key, k);
+            if (getLeftNucleotide(hm, key, rc, k, freqThreshold) == -2 ||
+                    getRightNucleotide(hm, key, rc, k, freqThreshold) == -2) {
                 hm.put(key, BAN_VALUE);
                 totalBanned += value;
                 uniqueBanned++;
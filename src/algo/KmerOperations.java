@@ -1,28 +1,59 @@
 package algo;
 
 import org.apache.commons.lang.ArrayUtils;
-import ru.ifmo.genetics.dna.kmers.ShortKmer;
 
 import java.util.Arrays;
 
 public class KmerOperations {
     public static long[] possibleNeighbours(long kmerRepr, int k) {
         long[] ans = new long[8];
+        possibleNeighbours(kmerRepr, k, ans);
+        return ans;
+    }
 
-        ShortKmer goRight = new ShortKmer(kmerRepr, k);
-        goRight.shiftRight((byte) 0);
-        ans[0] = goRight.toLong();
-        ShortKmer goLeft = new ShortKmer(kmerRepr, k);
-        goLeft.shiftLeft((byte) 0);
-        ans[1] = goLeft.toLong();
+    /**
+     * Allocation-free version of possibleNeighbours(long, int): writes canonical representations
+     * of all possible neighbours of the canonical k-mer to buffer[0..8) in the same order,
+     * i.e. right and left neighbours interleaved for nucleotides 0..3.
+     */
+    public static void possibleNeighbours(long kmer, int k, long[] buffer) {
+        long mask = (1L << (2 * k)) - 1;
+        int shift = 2 * k - 2;
+        long rc = rc(kmer, k);
+        for (int nuc = 0; nuc <= 3; nuc++) {
+            long rightFw = ((kmer << 2) | nuc) & mask;
+            long rightRc = (rc >>> 2) | ((long) (3 - nuc) << shift);
+            long leftFw = (kmer >>> 2) | ((long) nuc << shift);
+            long leftRc = ((rc << 2) | (3 - nuc)) & mask;
+            buffer[2 * nuc] = Math.min(rightFw, rightRc);
+            buffer[2 * nuc + 1] = Math.min(leftFw, leftRc);
+        }
+    }
 
-        for (byte nuc = 1; nuc <= 3; nuc++) {
-            goRight.updateAt(k - 1, nuc);
-            ans[nuc*2] = goRight.toLong();
-            goLeft.updateAt(0, nuc);
-            ans[nuc*2 + 1] = goLeft.toLong();
+    /**
+     * Writes canonical representations of k-mers obtained by appending nucleotides 0..3 to the right
+     * of k-mer's forward representation to buffer[0..4).
+     */
+    public static void rightNeighbours(long kmer, int k, long[] buffer) {
+        long mask = (1L << (2 * k)) - 1;
+        int shift = 2 * k - 2;
+        long rc = rc(kmer, k);
+        for (int nuc = 0; nuc <= 3; nuc++) {
+            buffer[nuc] = Math.min(((kmer << 2) | nuc) & mask, (rc >>> 2) | ((long) (3 - nuc) << shift));
+        }
+    }
+
+    /**
+     * Writes canonical representations of k-mers obtained by appending nucleotides 0..3 to the left
+     * of k-mer's forward representation to buffer[0..4).
+     */
+    public static void leftNeighbours(long kmer, int k, long[] buffer) {
+        long mask = (1L << (2 * k)) - 1;
+        int shift = 2 * k - 2;
+        long rc = rc(kmer, k);
+        for (int nuc = 0; nuc <= 3; nuc++) {
+            buffer[nuc] = Math.min((kmer >>> 2) | ((long) nuc << shift), ((rc << 2) | (3 - nuc)) & mask);
         }
-        return ans;
     }
 
     public static long[] calcNeighbours(long kmer, int k) {
@@ -30,32 +61,14 @@ public class KmerOperations {
     }
 
     public static long[] rightNeighbours(long kmer, int k) {
-        long mask = (1L << (2 * k)) - 1;
-        long[] ans = new long[] {(kmer << 2) & mask,
-                ((kmer << 2) & mask) | 1,
-                ((kmer << 2) & mask) | 2,
-                ((kmer << 2) & mask) | 3};
-        for (int i = 0; i < ans.length; i++) {
-            long rc = rc(ans[i], k);
-            if (rc < ans[i]) {
-                ans[i] = rc;
-            }
-        }
+        long[] ans = new long[4];
+        rightNeighbours(kmer, k, ans);
         return ans;
     }
 
     public static long[] leftNeighbours(long kmerRepr, int k) {
         long[] ans = new long[4];
-
-        ShortKmer kmer = new ShortKmer(kmerRepr, k);
-        byte rightNuc = kmer.nucAt(k - 1);
-
-        for (byte nuc = 0; nuc <= 3; nuc++) {
-            kmer.shiftLeft(nuc);
-            ans[nuc] = kmer.toLong();
-            kmer.shiftRight(rightNuc);
-            assert kmer.toLong() == kmerRepr;
-        }
+        leftNeighbours(kmerRepr, k, ans);
         return ans;
     }
 
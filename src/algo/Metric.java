@@ -0,0 +1,532 @@
+package algo;
+
+import structures.FeaturesVector;
+
+import java.util.Arrays;
+
+/**
+ * Distance between features vectors, calculated by DistanceMatrix.<br></br>
+ * Vectors are transformed once in prepare(), then the distance for a pair of vectors is calculated
+ * from the sum of kernel() values over ranges of components, so kernels are tight loops over primitive arrays.
+ * Metrics implementing SparseMetric also work with sparse vectors.
+ * An instance is used for one matrix only, kernel() and distance() are called from many threads.
+ */
+public abstract class Metric {
+
+    public static final String[] NAMES = {"bray-curtis", "jaccard", "cosine", "clr-euclidean",
+            "jensen-shannon", "pearson", "spearman"};
+
+    /**
+     * @return new metric by its name from NAMES, or null if there is no such metric
+     */
+    public static Metric create(String name) {
+        if (name.equals("bray-curtis")) {
+            return new BrayCurtis();
+        } else if (name.equals("jaccard")) {
+            return new Jaccard();
+        } else if (name.equals("cosine")) {
+            return new Cosine();
+        } else if (name.equals("clr-euclidean")) {
+            return new ClrEuclidean();
+        } else if (name.equals("jensen-shannon")) {
+            return new JensenShannon();
+        } else if (name.equals("pearson")) {
+            return new Pearson();
+        } else if (name.equals("spearman")) {
+            return new Spearman();
+        }
+        return null;
+    }
+
+
+    /**
+     * Is called once before all other methods, all vectors have the same length.
+     */
+    abstract void prepare(long[][] vectors);
+
+    /**
+     * @return part of the pair's sum for components [from, to)
+     */
+    abstract double kernel(int i, int j, int from, int to);
+
+    /**
+     * @param sum sum of kernel() values over all components
+     */
+    abstract double distance(int i, int j, double sum);
+
+
+    /**
+     * sum |a_i - b_i| / sum (|a_i| + |b_i|), NaN for two zero vectors.
+     * Sums are integer, so they are exact while they are less than 2^53.
+     */
+    static class BrayCurtis extends Metric implements SparseMetric {
+        long[][] vectors;
+        int[][] indices;
+        long[] sums;
+
+        @Override
+        void prepare(long[][] vectors) {
+            this.vectors = vectors;
+            sums = new long[vectors.length];
+            for (int i = 0; i < vectors.length; i++) {
+                sums[i] = absSum(vectors[i]);
+            }
+        }
+
+        @Override
+        public double sparseDensity() {
+            return 0.04;
+        }
+
+        @Override
+        public void prepareSparse(FeaturesVector[] vectors) {
+            this.vectors = new long[vectors.length][];
+            indices = new int[vectors.length][];
+            sums = new long[vectors.length];
+            for (int i = 0; i < vectors.length; i++) {
+                this.vectors[i] = vectors[i].values;
+                indices[i] = vectors[i].indices;
+                sums[i] = absSum(vectors[i].values);
+            }
+        }
+
+        /**
+         * sum |a_i - b_i| = sum |a| + sum |b| - sum (|a_i| + |b_i| - |a_i - b_i|) over components present in both.
+         */
+        @Override
+        public double sparseKernel(int i, int j) {
+            int[] ia = indices[i], ib = indices[j];
+            long[] a = vectors[i], b = vectors[j];
+            long common = 0;
+            for (int x = 0, y = 0; x < ia.length && y < ib.length; ) {
+                if (ia[x] < ib[y]) {
+                    x++;
+                } else if (ia[x] > ib[y]) {
+                    y++;
+                } else {
+                    common += Math.abs(a[x]) + Math.abs(b[y]) - Math.abs(a[x] - b[y]);
+                    x++;
+                    y++;
+                }
+            }
+            return sums[i] + sums[j] - common;
+        }
+
+        static long absSum(long[] values) {
+            long sum = 0;
+            for (long value : values) {
+                sum += Math.abs(value);
+            }
+            return sum;
+        }
+
+        @Override
+        double kernel(int i, int j, int from, int to) {
+            long[] a = vectors[i], b = vectors[j];
+            long diff = 0;
+            for (int pos = from; pos < to; pos++) {
+                diff += Math.abs(a[pos] - b[pos]);
+            }
+            return diff;
+        }
+
+        @Override
+        double distance(int i, int j, double sum) {
+            return sum / (double) (sums[i] + sums[j]);
+        }
+    }
+
+    /**
+     * 1 - |A & B| / |A | B| for sets of present (non-zero) features, NaN for two zero vectors.
+     * Sets are stored as bitsets, so ranges passed to kernel() must start at multiples of 64,
+     * or as increasing indices for sparse vectors.
+     */
+    static class Jaccard extends Metric implements SparseMetric {
+        long[][] bits;
+        int[][] sets;
+        long[] present;
+
+        @Override
+        void prepare(long[][] vectors) {
+            bits = new long[vectors.length][];
+            present = new long[vectors.length];
+            for (int i = 0; i < vectors.length; i++) {
+                long[] vector = vectors[i];
+                bits[i] = new long[(vector.length + 63) >>> 6];
+                for (int pos = 0; pos < vector.length; pos++) {
+                    if (vector[pos] != 0) {
+                        bits[i][pos >>> 6] |= 1L << pos;
+                        present[i]++;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public double sparseDensity() {
+            return 0.02;
+        }
+
+        @Override
+        public void prepareSparse(FeaturesVector[] vectors) {
+            sets = new int[vectors.length][];
+            present = new long[vectors.length];
+            for (int i = 0; i < vectors.length; i++) {
+                long[] values = vectors[i].values;
+                int[] set = new int[values.length];
+                int n = 0;
+                for (int x = 0; x < values.length; x++) {
+                    if (values[x] != 0) {
+                        set[n++] = vectors[i].indices[x];
+                    }
+                }
+                sets[i] = Arrays.copyOf(set, n);
+                present[i] = n;
+            }
+        }
+
+        @Override
+        public double sparseKernel(int i, int j) {
+            int[] a = sets[i], b = sets[j];
+            long both = 0;
+            for (int x = 0, y = 0; x < a.length && y < b.length; ) {
+                if (a[x] < b[y]) {
+                    x++;
+                } else if (a[x] > b[y]) {
+                    y++;
+                } else {
+                    both++;
+                    x++;
+                    y++;
+                }
+            }
+            return both;
+        }
+
+        @Override
+        double kernel(int i, int j, int from, int to) {
+            long[] a = bits[i], b = bits[j];
+            long both = 0;
+            for (int w = from >>> 6, end = (to + 63) >>> 6; w < end; w++) {
+                both += Long.bitCount(a[w] & b[w]);
+            }
+            return both;
+        }
+
+        @Override
+        double distance(int i, int j, double sum) {
+            return 1 - sum / (present[i] + present[j] - sum);
+        }
+    }
+
+    /**
+     * Metrics which are calculated for vectors transformed to double rows.
+     * Rows of sparse vectors hold transformed non-zero values only, with indices of the vectors,
+     * so a subclass implementing SparseMetric must have transform() which keeps zeros.
+     */
+    abstract static class RowsMetric extends Metric {
+        double[][] rows;
+        int[][] indices;
+
+        abstract double[] transform(long[] vector);
+
+        @Override
+        void prepare(long[][] vectors) {
+            rows = new double[vectors.length][];
+            for (int i = 0; i < vectors.length; i++) {
+                rows[i] = transform(vectors[i]);
+            }
+        }
+
+        /**
+         * Implements SparseMetric.prepareSparse() for subclasses supporting sparse vectors.
+         */
+        public void prepareSparse(FeaturesVector[] vectors) {
+            rows = new double[vectors.length][];
+            indices = new int[vectors.length][];
+            for (int i = 0; i < vectors.length; i++) {
+                rows[i] = transform(vectors[i].values);
+                indices[i] = vectors[i].indices;
+            }
+        }
+
+        /**
+         * Zero vector gives NaN row if the transformation divides by its norm or sum,
+         * or empty row if it's sparse.
+         */
+        boolean isZero(int i) {
+            return rows[i].length == 0 || Double.isNaN(rows[i][0]);
+        }
+
+        static double dot(double[] a, double[] b, int from, int to) {
+            double sum = 0;
+            for (int pos = from; pos < to; pos++) {
+                sum += a[pos] * b[pos];
+            }
+            return sum;
+        }
+
+        /**
+         * @return row divided by its euclidean norm, or NaN row for zero one
+         */
+        static double[] normalize(double[] row) {
+            double norm = Math.sqrt(dot(row, row, 0, row.length));
+            for (int pos = 0; pos < row.length; pos++) {
+                row[pos] /= norm;
+            }
+            return row;
+        }
+
+        static double[] toDoubles(long[] vector) {
+            double[] row = new double[vector.length];
+            for (int pos = 0; pos < vector.length; pos++) {
+                row[pos] = vector[pos];
+            }
+            return row;
+        }
+
+        static double[] centered(double[] row) {
+            double mean = 0;
+            for (double value : row) {
+                mean += value;
+            }
+            mean /= row.length;
+            for (int pos = 0; pos < row.length; pos++) {
+                row[pos] -= mean;
+            }
+            return row;
+        }
+    }
+
+    /**
+     * 1 - cos(a, b), NaN if one of vectors is zero.
+     */
+    static class Cosine extends RowsMetric implements SparseMetric {
+        @Override
+        double[] transform(long[] vector) {
+            return normalize(toDoubles(vector));
+        }
+
+        @Override
+        double kernel(int i, int j, int from, int to) {
+            return dot(rows[i], rows[j], from, to);
+        }
+
+        @Override
+        public double sparseDensity() {
+            return 0.1;
+        }
+
+        @Override
+        public double sparseKernel(int i, int j) {
+            if (isZero(i) || isZero(j)) {
+                return Double.NaN;
+            }
+            int[] ia = indices[i], ib = indices[j];
+            double[] a = rows[i], b = rows[j];
+            double sum = 0;
+            for (int x = 0, y = 0; x < ia.length && y < ib.length; ) {
+                if (ia[x] < ib[y]) {
+                    x++;
+                } else if (ia[x] > ib[y]) {
+                    y++;
+                } else {
+                    sum += a[x] * b[y];
+                    x++;
+                    y++;
+                }
+            }
+            return sum;
+        }
+
+        @Override
+        double distance(int i, int j, double sum) {
+            return 1 - sum;
+        }
+    }
+
+    /**
+     * Euclidean distance between centered log-ratio transformed vectors,
+     * clr(x)_i = ln(x_i + 1) - mean(ln(x + 1)), pseudocount 1 is for zero counts.
+     */
+    static class ClrEuclidean extends RowsMetric {
+        @Override
+        double[] transform(long[] vector) {
+            double[] row = new double[vector.length];
+            for (int pos = 0; pos < vector.length; pos++) {
+                row[pos] = Math.log(vector[pos] + 1.0);
+            }
+            return centered(row);
+        }
+
+        @Override
+        double kernel(int i, int j, int from, int to) {
+            double[] a = rows[i], b = rows[j];
+            double sum = 0;
+            for (int pos = from; pos < to; pos++) {
+                double d = a[pos] - b[pos];
+                sum += d * d;
+            }
+            return sum;
+        }
+
+        @Override
+        double distance(int i, int j, double sum) {
+            return Math.sqrt(sum);
+        }
+    }
+
+    /**
+     * Square root of Jensen-Shannon divergence (with log base 2) between vectors normalized to distributions,
+     * it is from 0 to 1. NaN if one of vectors is zero.<br></br>
+     * A component present in only one distribution adds p ln 2 to the divergence in nats, so
+     * JSD = ln 2 + sum (p ln p + q ln q - (p + q) ln (p + q)) / 2 over components present in both distributions,
+     * and kernel() takes a logarithm only for such components.
+     */
+    static class JensenShannon extends RowsMetric implements SparseMetric {
+        double[][] plogp;
+
+        @Override
+        void prepare(long[][] vectors) {
+            super.prepare(vectors);
+            preparePlogp();
+        }
+
+        @Override
+        public void prepareSparse(FeaturesVector[] vectors) {
+            super.prepareSparse(vectors);
+            preparePlogp();
+        }
+
+        void preparePlogp() {
+            plogp = new double[rows.length][];
+            for (int i = 0; i < rows.length; i++) {
+                double[] row = rows[i];
+                plogp[i] = new double[row.length];
+                for (int pos = 0; pos < row.length; pos++) {
+                    if (row[pos] > 0) {
+                        plogp[i][pos] = row[pos] * Math.log(row[pos]);
+                    }
+                }
+            }
+        }
+
+        @Override
+        double[] transform(long[] vector) {
+            double[] row = toDoubles(vector);
+            double sum = 0;
+            for (double value : row) {
+                sum += value;
+            }
+            for (int pos = 0; pos < row.length; pos++) {
+                row[pos] /= sum;
+            }
+            return row;
+        }
+
+        @Override
+        double kernel(int i, int j, int from, int to) {
+            double[] p = rows[i], q = rows[j];
+            double[] pp = plogp[i], qq = plogp[j];
+            double sum = 0;
+            for (int pos = from; pos < to; pos++) {
+                if (p[pos] > 0 && q[pos] > 0) {
+                    double s = p[pos] + q[pos];
+                    sum += pp[pos] + qq[pos] - s * Math.log(s);
+                }
+            }
+            return sum;
+        }
+
+        @Override
+        public double sparseDensity() {
+            return 0.3;
+        }
+
+        @Override
+        public double sparseKernel(int i, int j) {
+            int[] ip = indices[i], iq = indices[j];
+            double[] p = rows[i], q = rows[j];
+            double[] pp = plogp[i], qq = plogp[j];
+            double sum = 0;
+            for (int x = 0, y = 0; x < ip.length && y < iq.length; ) {
+                if (ip[x] < iq[y]) {
+                    x++;
+                } else if (ip[x] > iq[y]) {
+                    y++;
+                } else {
+                    if (p[x] > 0 && q[y] > 0) {
+                        double s = p[x] + q[y];
+                        sum += pp[x] + qq[y] - s * Math.log(s);
+                    }
+                    x++;
+                    y++;
+                }
+            }
+            return sum;
+        }
+
+        @Override
+        double distance(int i, int j, double sum) {
+            if (isZero(i) || isZero(j)) {
+                return Double.NaN;
+            }
+            double jsd = Math.log(2) + sum / 2;
+            return Math.sqrt(Math.max(0, jsd / Math.log(2)));
+        }
+    }
+
+    /**
+     * 1 - Pearson correlation, NaN if one of vectors is constant.
+     * Rows are centered and normalized, so the correlation is their dot product.
+     */
+    static class Pearson extends RowsMetric {
+        @Override
+        double[] transform(long[] vector) {
+            return normalize(centered(toDoubles(vector)));
+        }
+
+        @Override
+        double kernel(int i, int j, int from, int to) {
+            return dot(rows[i], rows[j], from, to);
+        }
+
+        @Override
+        double distance(int i, int j, double sum) {
+            return 1 - sum;
+        }
+    }
+
+    /**
+     * 1 - Spearman correlation, i.e. Pearson correlation of ranks, tied values get their average rank.
+     */
+    static class Spearman extends Pearson {
+        @Override
+        double[] transform(long[] vector) {
+            return normalize(centered(ranks(vector)));
+        }
+
+        static double[] ranks(long[] vector) {
+            long[] values = vector.clone();
+            Arrays.sort(values);
+            // distinct values with their average ranks
+            double[] valueRanks = new double[values.length];
+            int distinct = 0;
+            for (int first = 0, last; first < values.length; first = last + 1) {
+                last = first;
+                while (last + 1 < values.length && values[last + 1] == values[first]) {
+                    last++;
+                }
+                values[distinct] = values[first];
+                valueRanks[distinct] = (first + last) / 2.0 + 1;
+                distinct++;
+            }
+
+            double[] ranks = new double[vector.length];
+            for (int pos = 0; pos < vector.length; pos++) {
+                ranks[pos] = valueRanks[Arrays.binarySearch(values, 0, distinct, vector[pos])];
+            }
+            return ranks;
+        }
+    }
+}
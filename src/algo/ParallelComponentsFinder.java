@@ -0,0 +1,349 @@
+package algo;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayFIFOQueue;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMap;
+import structures.ConnectedComponent;
+import structures.DeBruijnGraph;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Finds connected components of the whole graph in many threads.<br></br>
+ * Every slot of hm's sub-maps gets a global index, and components are found by lock-free union-find
+ * over these indices, every sub-map is processed by a separate task.
+ * Root of every component is its slot with minimal index, i.e. the first k-mer of the component
+ * met by hm.entryIterator(), so components are returned in the same order as by sequential search.
+ * Good components are then traversed by BFS from their roots, so their k-mers are in the same order too.<br></br>
+ * Doesn't change values in hm.
+ */
+public class ParallelComponentsFinder {
+    /**
+     * Maximal size of local counters of components sizes before flushing them to shared array.
+     */
+    static final int LOCAL_COUNTERS_SIZE = 1 << 16;
+
+    final DeBruijnGraph graph;
+    final BigLong2ShortHashMap hm;
+    final int b1, b2;
+    final int curFreqThreshold;
+    final int availableProcessors;
+
+    final int mapsMask;
+    final int[] offsets;
+    /**
+     * Parent in union-find for slots of k-mers. After counting sizes the root stores negated size of
+     * its component, and while traversing good components a visited slot stores -1.
+     */
+    final AtomicIntegerArray parent;
+
+    ExecutorService executor;
+
+    private ParallelComponentsFinder(DeBruijnGraph graph, int b1, int b2, int curFreqThreshold,
+                                     int availableProcessors) {
+        this.graph = graph;
+        this.hm = graph.hm;
+        this.b1 = b1;
+        this.b2 = b2;
+        this.curFreqThreshold = curFreqThreshold;
+        this.availableProcessors = availableProcessors;
+
+        mapsMask = hm.maps.length - 1;
+        offsets = new int[hm.maps.length];
+        long slots = 0;
+        for (int i = 0; i < hm.maps.length; i++) {
+            offsets[i] = (int) slots;
+            slots += hm.maps[i].capacity() + 1;     // the last slot is for the free key
+        }
+        parent = new AtomicIntegerArray((int) slots);
+    }
+
+    /**
+     * @return false if hm has too many slots to be indexed by int
+     */
+    public static boolean canBeUsed(BigLong2ShortHashMap hm) {
+        long slots = 0;
+        for (Long2ShortHashMap map : hm.maps) {
+            slots += map.capacity() + 1;
+        }
+        return slots < Integer.MAX_VALUE - 8;
+    }
+
+    /**
+     * Finds components formed of k-mers with frequency >= curFreqThreshold,
+     * graph must be built with threshold curFreqThreshold - 1.
+     * As in sequential search, components with more than b2 k-mers have only nextHM filled,
+     * components with less than b1 k-mers are returned without k-mers, as they are only counted.
+     */
+    public static List<ConnectedComponent> findAllComponents(DeBruijnGraph graph, int b1, int b2,
+                                                             int curFreqThreshold, int availableProcessors)
+            throws InterruptedException {
+        ParallelComponentsFinder finder = new ParallelComponentsFinder(graph, b1, b2, curFreqThreshold,
+                availableProcessors);
+        finder.executor = Executors.newFixedThreadPool(availableProcessors);
+        try {
+            return finder.run();
+        } finally {
+            finder.executor.shutdown();
+        }
+    }
+
+    private List<ConnectedComponent> run() throws InterruptedException {
+        forAllMaps(new MapTask() {
+            @Override
+            public void process(int n, Long2ShortHashMap map) {
+                for (int pos = 0; pos <= map.capacity(); pos++) {
+                    if (isSolid(map, pos)) {
+                        parent.set(offsets[n] + pos, offsets[n] + pos);
+                    }
+                }
+            }
+        });
+        forAllMaps(new MapTask() {
+            @Override
+            public void process(int n, Long2ShortHashMap map) {
+                long[] neighbours = new long[8];
+                for (int pos = 0; pos <= map.capacity(); pos++) {
+                    if (!isSolid(map, pos)) {
+                        continue;
+                    }
+                    int index = offsets[n] + pos;
+                    int cnt = graph.neighbours(map.keyAt(pos), neighbours);
+                    for (int i = 0; i < cnt; i++) {
+                        int neighbourIndex = index(neighbours[i]);
+                        if (neighbourIndex > index) {   // the edge is processed from both ends, once is enough
+                            union(index, neighbourIndex);
+                        }
+                    }
+                }
+            }
+        });
+        forAllMaps(new MapTask() {
+            @Override
+            public void process(int n, Long2ShortHashMap map) {
+                for (int pos = 0; pos <= map.capacity(); pos++) {
+                    if (isSolid(map, pos)) {
+                        parent.set(offsets[n] + pos, find(offsets[n] + pos));
+                    }
+                }
+            }
+        });
+        forAllMaps(new MapTask() {
+            @Override
+            public void process(int n, Long2ShortHashMap map) {
+                for (int pos = 0; pos <= map.capacity(); pos++) {
+                    if (isSolid(map, pos) && parent.get(offsets[n] + pos) == offsets[n] + pos) {
+                        parent.set(offsets[n] + pos, -1);
+                    }
+                }
+            }
+        });
+        forAllMaps(new MapTask() {
+            @Override
+            public void process(int n, Long2ShortHashMap map) {
+                Int2IntOpenHashMap counters = new Int2IntOpenHashMap();
+                for (int pos = 0; pos <= map.capacity(); pos++) {
+                    if (!isSolid(map, pos)) {
+                        continue;
+                    }
+                    int root = parent.get(offsets[n] + pos);
+                    if (root >= 0) {
+                        counters.addTo(root, 1);
+                        if (counters.size() >= LOCAL_COUNTERS_SIZE) {
+                            flushCounters(counters);
+                        }
+                    }
+                }
+                flushCounters(counters);
+            }
+        });
+
+        // collecting components in roots order
+        final List<List<ConnectedComponent>> mapsComps = new ArrayList<List<ConnectedComponent>>();
+        final List<IntArrayList> mapsRoots = new ArrayList<IntArrayList>();
+        for (int i = 0; i < hm.maps.length; i++) {
+            mapsComps.add(null);
+            mapsRoots.add(null);
+        }
+        final Int2ObjectOpenHashMap<ConnectedComponent> bigComps = new Int2ObjectOpenHashMap<ConnectedComponent>();
+        forAllMaps(new MapTask() {
+            @Override
+            public void process(int n, Long2ShortHashMap map) {
+                List<ConnectedComponent> comps = new ArrayList<ConnectedComponent>();
+                IntArrayList roots = new IntArrayList();
+                for (int pos = 0; pos <= map.capacity(); pos++) {
+                    if (!isSolid(map, pos) || parent.get(offsets[n] + pos) >= 0) {
+                        continue;
+                    }
+                    ConnectedComponent comp = new ConnectedComponent();
+                    comp.usedFreqThreshold = curFreqThreshold;
+                    comp.size = -parent.get(offsets[n] + pos);
+                    if (comp.size < b1) {
+                        comp.kmers = null;
+                    } else if (comp.size > b2) {
+                        comp.kmers = null;
+                        comp.nextHM = new BigLong2ShortHashMap(4, 13);
+                        synchronized (bigComps) {
+                            bigComps.put(offsets[n] + pos, comp);
+                        }
+                    }
+                    comps.add(comp);
+                    roots.add(pos);
+                }
+                mapsComps.set(n, comps);
+                mapsRoots.set(n, roots);
+            }
+        });
+
+        if (!bigComps.isEmpty()) {
+            forAllMaps(new MapTask() {
+                @Override
+                public void process(int n, Long2ShortHashMap map) {
+                    for (int pos = 0; pos <= map.capacity(); pos++) {
+                        if (!isSolid(map, pos)) {
+                            continue;
+                        }
+                        int root = parent.get(offsets[n] + pos);
+                        if (root < 0) {
+                            root = offsets[n] + pos;
+                        }
+                        ConnectedComponent comp = bigComps.get(root);
+                        short value = map.valueAt(pos);
+                        if (comp != null && value >= curFreqThreshold + 1) {
+                            comp.nextHM.put(map.keyAt(pos), value);
+                        }
+                    }
+                }
+            });
+        }
+
+        forAllMaps(new MapTask() {
+            @Override
+            public void process(int n, Long2ShortHashMap map) {
+                LongArrayFIFOQueue queue = new LongArrayFIFOQueue();
+                long[] neighbours = new long[8];
+                List<ConnectedComponent> comps = mapsComps.get(n);
+                IntArrayList roots = mapsRoots.get(n);
+                for (int i = 0; i < comps.size(); i++) {
+                    if (comps.get(i).kmers != null) {
+                        bfs(comps.get(i), map.keyAt(roots.getInt(i)), queue, neighbours);
+                    }
+                }
+            }
+        });
+
+        List<ConnectedComponent> ans = new ArrayList<ConnectedComponent>();
+        for (List<ConnectedComponent> comps : mapsComps) {
+            ans.addAll(comps);
+        }
+        return ans;
+    }
+
+    /**
+     * The same traversal as in ComponentsBuilder, but visited k-mers are marked in parent array.
+     */
+    private void bfs(ConnectedComponent comp, long startKmer, LongArrayFIFOQueue queue, long[] neighbours) {
+        comp.size = 0;
+        queue.clear();
+        queue.enqueue(startKmer);
+        comp.add(startKmer, hm.get(startKmer));     // root is already marked by negative size
+
+        while (queue.size() > 0) {
+            long kmer = queue.dequeue();
+            int cnt = graph.neighbours(kmer, neighbours);
+            for (int i = 0; i < cnt; i++) {
+                long neighbour = neighbours[i];
+                int index = index(neighbour);
+                if (parent.get(index) >= 0) {
+                    parent.set(index, -1);
+                    queue.enqueue(neighbour);
+                    comp.add(neighbour, hm.get(neighbour));
+                }
+            }
+        }
+    }
+
+
+    private boolean isSolid(Long2ShortHashMap map, int pos) {
+        return map.containsAt(pos) && map.valueAt(pos) >= curFreqThreshold;
+    }
+
+    private int index(long kmer) {
+        int n = HashCommon.murmurHash3((int) kmer) & mapsMask;
+        return offsets[n] + (int) hm.maps[n].getPosition(kmer);
+    }
+
+    private int find(int x) {
+        while (true) {
+            int p = parent.get(x);
+            if (p == x) {
+                return x;
+            }
+            int gp = parent.get(p);
+            if (gp != p) {
+                parent.compareAndSet(x, p, gp);     // path halving
+            }
+            x = gp;
+        }
+    }
+
+    private void union(int a, int b) {
+        while (true) {
+            a = find(a);
+            b = find(b);
+            if (a == b) {
+                return;
+            }
+            if (a < b) {
+                int t = a;
+                a = b;
+                b = t;
+            }
+            // linking to the root with smaller index, so the root is the first slot of the component
+            if (parent.compareAndSet(a, a, b)) {
+                return;
+            }
+        }
+    }
+
+    private void flushCounters(Int2IntOpenHashMap counters) {
+        for (Int2IntMap.Entry e : counters.int2IntEntrySet()) {
+            parent.addAndGet(e.getIntKey(), -e.getIntValue());
+        }
+        counters.clear();
+    }
+
+
+    interface MapTask {
+        void process(int n, Long2ShortHashMap map);
+    }
+
+    private void forAllMaps(final MapTask task) throws InterruptedException {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < hm.maps.length; i++) {
+            final int n = i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    task.process(n, hm.maps[n]);
+                    return null;
+                }
+            });
+        }
+        for (Future<Void> f : executor.invokeAll(tasks)) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Components search failed", e.getCause());
+            }
+        }
+    }
+}
@@ -1,32 +1,168 @@
 package algo;
 
-import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import ru.ifmo.genetics.executors.BlockingThreadPoolExecutor;
+import ru.ifmo.genetics.io.Sink;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMap;
+import structures.DeBruijnGraph;
 import structures.Sequence;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
 
 public class SequencesFinders {
 
+    /**
+     * Number of start k-mers processed by one task.
+     */
+    static final int STARTS_IN_TASK = 1 << 12;
+
     public static Deque<Sequence> thresholdStrategy(BigLong2ShortHashMap hm,
                                                    int availableProcessors,
                                                    int freqThreshold,
                                                    int lenThreshold,
                                                    int k) throws InterruptedException {
-        Deque<Sequence> ans = new ConcurrentLinkedDeque<Sequence>();
-        LongOpenHashSet used = new LongOpenHashSet();
+        final Deque<Sequence> ans = new ConcurrentLinkedDeque<Sequence>();
+        thresholdStrategy(hm, availableProcessors, freqThreshold, lenThreshold, k, new Sink<Sequence>() {
+            @Override
+            public void put(Sequence v) {
+                ans.add(v);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        return ans;
+    }
+
+    /**
+     * Finds simple sequences and puts them to sink as soon as they are found, only one thread puts to sink.
+     * Firstly, start k-mers of sequences are collected and sorted, then they are processed by tasks
+     * in consecutive ranges, and results of tasks are put to sink in the same order.
+     * So the output is the same for every run and number of threads,
+     * and only sequences from a bounded number of tasks are kept in memory.
+     *
+     * @return number of sequences found
+     */
+    public static long thresholdStrategy(BigLong2ShortHashMap hm,
+                                         int availableProcessors,
+                                         int freqThreshold,
+                                         int lenThreshold,
+                                         int k,
+                                         Sink<Sequence> sink) throws InterruptedException {
+        final DeBruijnGraph graph = DeBruijnGraph.build(hm, k, freqThreshold, availableProcessors);
+        long[] starts = findStarts(graph, availableProcessors);
 
         BlockingThreadPoolExecutor executor = new BlockingThreadPoolExecutor(availableProcessors);
+        Queue<TaskRunner> running = new ArrayDeque<TaskRunner>();
+        int maxRunning = 2 * availableProcessors;
+        long found = 0;
 
-        for (int i = 0; i < hm.maps.length; ++i) {
-            executor.blockingExecute(new
-                    AddSequencesShiftingRightTask(hm, hm.maps[i], k, freqThreshold, lenThreshold, ans, used));
+        for (int from = 0; from < starts.length; from += STARTS_IN_TASK) {
+            if (running.size() == maxRunning) {
+                found += running.poll().putResultTo(sink);
+            }
+            TaskRunner runner = new TaskRunner(new AddSequencesShiftingRightTask(graph, starts, from,
+                    Math.min(from + STARTS_IN_TASK, starts.length), lenThreshold));
+            running.add(runner);
+            executor.blockingExecute(runner);
         }
+        while (!running.isEmpty()) {
+            found += running.poll().putResultTo(sink);
+        }
+
+        executor.shutdown();
+        return found;
+    }
 
-//        System.out.println(executor.getTaskCount());
+    /**
+     * @return sorted array of canonical k-mers, from which simple sequences start in fw or rc direction
+     */
+    static long[] findStarts(final DeBruijnGraph graph, int availableProcessors) throws InterruptedException {
+        BigLong2ShortHashMap hm = graph.hm;
+        final int k = graph.getK();
+        final int freqThreshold = graph.getFreqThreshold();
+        final LongArrayList[] mapsStarts = new LongArrayList[hm.maps.length];
+
+        BlockingThreadPoolExecutor executor = new BlockingThreadPoolExecutor(availableProcessors);
+        for (int i = 0; i < hm.maps.length; ++i) {
+            final int n = i;
+            final Long2ShortHashMap map = hm.maps[i];
+            executor.blockingExecute(new Runnable() {
+                @Override
+                public void run() {
+                    LongArrayList starts = new LongArrayList();
+                    for (long pos = 0; pos <= map.capacity(); pos++) {
+                        if (!map.containsAt(pos) || map.valueAt(pos) <= freqThreshold) {
+                            continue;
+                        }
+                        long key = map.keyAt(pos);
+                        long keyRc = KmerOperations.rc(key, k);
+                        if (graph.isSequenceStart(key, keyRc) || graph.isSequenceStart(keyRc, key)) {
+                            starts.add(key);
+                        }
+                    }
+                    mapsStarts[n] = starts;
+                }
+            });
+        }
         executor.shutdownAndAwaitTermination();
+
+        int size = 0;
+        for (LongArrayList starts : mapsStarts) {
+            size += starts.size();
+        }
+        long[] ans = new long[size];
+        int n = 0;
+        for (LongArrayList starts : mapsStarts) {
+            starts.getElements(0, ans, n, starts.size());
+            n += starts.size();
+        }
+        Arrays.sort(ans);
         return ans;
     }
+
+
+    /**
+     * Runs task and lets to wait for its result.
+     */
+    static class TaskRunner implements Runnable {
+        final AddSequencesShiftingRightTask task;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Throwable error = null;
+
+        TaskRunner(AddSequencesShiftingRightTask task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                error = t;
+            } finally {
+                done.countDown();
+            }
+        }
+
+        int putResultTo(Sink<Sequence> sink) throws InterruptedException {
+            done.await();
+            if (error != null) {
+                throw new RuntimeException("Simple sequences search failed", error);
+            }
+            List<Sequence> sequences = task.getFoundSequences();
+            for (Sequence seq : sequences) {
+                sink.put(seq);
+            }
+            return sequences.size();
+        }
+    }
 }
@@ -0,0 +1,27 @@
+package algo;
+
+import structures.FeaturesVector;
+
+/**
+ * Metric which also works with sparse vectors: DistanceMatrix calls prepareSparse() instead of prepare()
+ * for sparse enough vectors, and sparseKernel() gives the whole sum for a pair merging only non-zero values
+ * of the vectors. distance() is the same for both representations.
+ */
+interface SparseMetric {
+
+    /**
+     * @return average density of vectors (fraction of non-zero values) below which sparseKernel() is faster
+     * than kernel()
+     */
+    double sparseDensity();
+
+    /**
+     * Is called once before sparseKernel() and distance() instead of prepare(), all vectors are sparse.
+     */
+    void prepareSparse(FeaturesVector[] vectors);
+
+    /**
+     * @return the same sum as kernel() values over all components give
+     */
+    double sparseKernel(int i, int j);
+}
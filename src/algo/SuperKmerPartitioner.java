@@ -0,0 +1,305 @@
+package algo;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits reads into super-k-mers (maximal runs of consecutive k-mers with the same minimizer)
+ * and routes them to partitions by minimizer, so all occurrences of a k-mer get into the same partition.<br></br>
+ * Minimizer of a k-mer is its canonical m-mer with the minimal hash value, so it doesn't depend on the strand.<br></br>
+ * <br></br>
+ * Every partition is owned by a single thread, that is the only one calling the processor for this partition,
+ * so partitions' data structures are never contended.
+ * Producers (one Router per thread) pack super-k-mers into batches
+ * as the first k-mer followed by the next nucleotides, 2 bits per nucleotide.
+ * The number of batches is bounded, so producers wait when owners don't keep up.
+ */
+public class SuperKmerPartitioner {
+    public static final int DEFAULT_MINIMIZER_LENGTH = 11;
+    static final int MEMORY_FOR_BATCHES = 1 << 26;     // 64 Mb
+    static final int MIN_BATCH_SIZE = 1 << 10, MAX_BATCH_SIZE = 1 << 14;
+
+    /**
+     * Is called from the owner thread of the partition only.
+     */
+    public interface KmerProcessor {
+        void processKmer(int partition, long kmer);
+    }
+
+
+    final int k, m, w;
+    final int partitionsNumber;
+    final KmerProcessor processor;
+    final long kMask, mMask;
+    final int batchSize;
+
+    final LinkedBlockingQueue<long[]>[] filled;
+    final LinkedBlockingQueue<long[]> free = new LinkedBlockingQueue<long[]>();
+    final AtomicInteger batchesLeft;     // batches to be allocated on demand
+    final long[] endMarker = new long[0];
+    final CountDownLatch ownersLatch;
+    volatile Throwable error = null;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public SuperKmerPartitioner(int k, int m, int partitionsNumber, int producersNumber, KmerProcessor processor) {
+        if (m < 1 || m > k) {
+            throw new IllegalArgumentException("Minimizer length must be in [1, k]");
+        }
+        this.k = k;
+        this.m = m;
+        w = k - m + 1;
+        this.partitionsNumber = partitionsNumber;
+        this.processor = processor;
+        kMask = (k == 32) ? -1L : (1L << (2 * k)) - 1;
+        mMask = (1L << (2 * m)) - 1;
+
+        // every producer holds a batch for every partition
+        long size = MEMORY_FOR_BATCHES / 8 / ((long) (producersNumber + 2) * partitionsNumber);
+        batchSize = (int) Math.max(MIN_BATCH_SIZE, Math.min(size, MAX_BATCH_SIZE));
+        batchesLeft = new AtomicInteger((producersNumber + 2) * partitionsNumber);
+
+        filled = new LinkedBlockingQueue[partitionsNumber];
+        for (int i = 0; i < partitionsNumber; i++) {
+            filled[i] = new LinkedBlockingQueue<long[]>();
+        }
+        ownersLatch = new CountDownLatch(partitionsNumber);
+    }
+
+    public int partitionsNumber() {
+        return partitionsNumber;
+    }
+
+
+    /**
+     * Starts partitions' owners.
+     */
+    public void start(ExecutorService executor) {
+        for (int i = 0; i < partitionsNumber; i++) {
+            final int partition = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runOwner(partition);
+                }
+            });
+        }
+    }
+
+    /**
+     * Waits for owners to process all batches, must be called after all routers are flushed.
+     */
+    public void finish() throws InterruptedException {
+        for (LinkedBlockingQueue<long[]> queue : filled) {
+            queue.put(endMarker);
+        }
+        ownersLatch.await();
+    }
+
+    /**
+     * @return the first error thrown by processor, or null
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    public Router newRouter() {
+        return new Router();
+    }
+
+
+    /**
+     * Calculates partition of the canonical k-mer from scratch.
+     */
+    public int partitionOf(long kmer) {
+        long rc = KmerOperations.rc(kmer, k);
+        long minHash = Long.MAX_VALUE;
+        for (int i = 0; i < w; i++) {
+            minHash = Math.min(minHash, mmerHash(kmer, rc, i));
+        }
+        return partitionOfHash(minHash);
+    }
+
+    /**
+     * @param i offset of m-mer from the right end of k-mer
+     */
+    long mmerHash(long fw, long rc, int i) {
+        long fwm = (fw >>> (2 * i)) & mMask;
+        long rcm = (rc >>> (2 * (w - 1 - i))) & mMask;
+        return HashCommon.murmurHash3(Math.min(fwm, rcm)) & Long.MAX_VALUE;
+    }
+
+    int partitionOfHash(long hash) {
+        return (int) (hash % partitionsNumber);
+    }
+
+
+    long[] takeFreeBatch() throws InterruptedException {
+        long[] batch = free.poll();
+        if (batch == null) {
+            batch = (batchesLeft.getAndDecrement() > 0) ? new long[batchSize] : free.take();
+        }
+        return batch;
+    }
+
+    private void runOwner(int partition) {
+        LinkedBlockingQueue<long[]> queue = filled[partition];
+        try {
+            while (true) {
+                long[] batch = queue.take();
+                if (batch == endMarker) {
+                    break;
+                }
+                if (error == null) {
+                    try {
+                        processBatch(partition, batch);
+                    } catch (Throwable e) {
+                        error = e;      // continuing to take batches, so producers don't wait forever
+                    }
+                }
+                free.put(batch);
+            }
+        } catch (InterruptedException e) {
+            // finishing
+        } finally {
+            ownersLatch.countDown();
+        }
+    }
+
+    /**
+     * Batch consists of super-k-mers: long (number of k-mers, or 0 for the end of batch), long first k-mer,
+     * then the next nucleotides packed 32 per long, starting from the lowest bits.
+     */
+    private void processBatch(int partition, long[] batch) {
+        int rcShift = 2 * k - 2;
+        int pos = 0;
+        while (pos < batch.length && batch[pos] != 0) {
+            int count = (int) batch[pos];
+            long fw = batch[pos + 1];
+            long rc = KmerOperations.rc(fw, k);
+            pos += 2;
+            processor.processKmer(partition, Math.min(fw, rc));
+            for (int i = 1; i < count; i++) {
+                int bit = 2 * ((i - 1) & 31);
+                long nuc = (batch[pos + ((i - 1) >>> 5)] >>> bit) & 3;
+                fw = ((fw << 2) | nuc) & kMask;
+                rc = (rc >>> 2) | ((3 - nuc) << rcShift);
+                processor.processKmer(partition, Math.min(fw, rc));
+            }
+            pos += (count + 30) >>> 5;
+        }
+    }
+
+
+    /**
+     * Splits k-mers of reads into super-k-mers and sends them to owners, mustn't be shared between threads.
+     */
+    public class Router {
+        // sliding window minimum of m-mers' hashes
+        final int dequeMask;
+        final long[] dequeHash, dequePos;
+        int head = 0, size = 0;
+        long pos;
+
+        final long[][] batches = new long[partitionsNumber][];
+        final int[] sizes = new int[partitionsNumber];
+
+        // current super-k-mer
+        int partition = -1;
+        int headerPos;
+        long count;
+
+        Router() {
+            int capacity = Integer.highestOneBit(w) * 2;
+            dequeMask = capacity - 1;
+            dequeHash = new long[capacity];
+            dequePos = new long[capacity];
+        }
+
+        /**
+         * Adds the next k-mer of a read.
+         * @param firstInRead true for the first k-mer of a read, otherwise k-mer must be the shift of the previous one
+         */
+        public void addKmer(long fw, long rc, boolean firstInRead) throws InterruptedException {
+            int p;
+            if (firstInRead) {
+                size = 0;
+                for (int i = w - 1; i >= 0; i--) {
+                    push(w - 1 - i, mmerHash(fw, rc, i));
+                }
+                pos = w - 1;
+                p = partitionOfHash(dequeHash[head]);
+            } else {
+                pos++;
+                if (dequePos[head] <= pos - w) {
+                    head = (head + 1) & dequeMask;
+                    size--;
+                }
+                push(pos, mmerHash(fw, rc, 0));
+                p = partitionOfHash(dequeHash[head]);
+            }
+
+            if (firstInRead || p != partition) {
+                startSuperKmer(p, fw);
+                return;
+            }
+            int i = (int) (count - 1);
+            if ((i & 31) == 0) {
+                if (sizes[p] == batchSize) {
+                    startSuperKmer(p, fw);  // batch is full
+                    return;
+                }
+                batches[p][sizes[p]++] = 0;
+            }
+            batches[p][sizes[p] - 1] |= (fw & 3) << (2 * (i & 31));
+            batches[p][headerPos] = ++count;
+        }
+
+        private void push(long pos, long hash) {
+            while (size > 0 && dequeHash[(head + size - 1) & dequeMask] >= hash) {
+                size--;
+            }
+            int i = (head + size) & dequeMask;
+            dequeHash[i] = hash;
+            dequePos[i] = pos;
+            size++;
+        }
+
+        private void startSuperKmer(int p, long fw) throws InterruptedException {
+            if (batches[p] == null) {
+                batches[p] = takeFreeBatch();
+            } else if (sizes[p] + 2 > batchSize) {
+                send(p);
+                batches[p] = takeFreeBatch();
+            }
+            partition = p;
+            headerPos = sizes[p];
+            batches[p][sizes[p]++] = count = 1;
+            batches[p][sizes[p]++] = fw;
+        }
+
+        private void send(int p) throws InterruptedException {
+            if (sizes[p] < batchSize) {
+                batches[p][sizes[p]] = 0;
+            }
+            filled[p].put(batches[p]);
+            batches[p] = null;
+            sizes[p] = 0;
+        }
+
+        /**
+         * Sends all unfinished batches to owners.
+         */
+        public void flush() throws InterruptedException {
+            for (int p = 0; p < partitionsNumber; p++) {
+                if (batches[p] != null) {
+                    send(p);
+                }
+            }
+            partition = -1;
+        }
+    }
+}
@@ -1,69 +1,161 @@
 package io;
 
 import org.apache.log4j.Logger;
-import ru.ifmo.genetics.dna.Dna;
-import ru.ifmo.genetics.io.sources.Source;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.utils.Misc;
 import ru.ifmo.genetics.utils.NumUtils;
-import ru.ifmo.genetics.utils.iterators.ProgressableIterator;
 import ru.ifmo.genetics.utils.tool.Tool;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Splits file into consecutive work ranges of workRangeSize bytes.<br></br>
+ * Workers claim work ranges by atomically moving the file offset and read them with positional reads,
+ * so several workers read disjoint parts of the file concurrently without locking.<br></br>
+ * Dispatchers for several files can be chained, so workers go to the next file
+ * as soon as all work ranges of the current file are claimed.
+ */
 public class BytesDispatcher {
     final Logger logger = Logger.getLogger("bytes-dispatcher");
 
-    final InputStream is;
+    final File file;
+    private final Logger fileLogger;  // for "Loading file" messages
+    final FileChannel channel;
+    final long fileSize;
+    final BufferPool pool;
     public final int workRangeSize;
-    long bytesRead = 0;
+
+    private final AtomicLong nextOffset = new AtomicLong();
+    final AtomicLong bytesRead = new AtomicLong();
+    private BytesDispatcher next = null;
+    private volatile boolean stopped = false;
 
     final BigLong2ShortHashMap hm; // for debug output
 
-    public BytesDispatcher(InputStream is, int workRangeSize, BigLong2ShortHashMap hmForMonitoring) {
-        this.is = is;
+    public BytesDispatcher(File file, BufferPool pool, BigLong2ShortHashMap hmForMonitoring, Logger fileLogger)
+            throws IOException {
+        this(file, new FileInputStream(file).getChannel(), file.length(), pool, pool.bufferSize,
+                hmForMonitoring, fileLogger);
+    }
+
+    protected BytesDispatcher(File file, FileChannel channel, long fileSize, BufferPool pool, int workRangeSize,
+                              BigLong2ShortHashMap hmForMonitoring, Logger fileLogger) {
+        this.file = file;
+        this.fileLogger = fileLogger;
+        this.channel = channel;
+        this.pool = pool;
         this.workRangeSize = workRangeSize;
-//        Tool.debug(logger, "Using " + workRangeSize + " bytes as workRangeSize");
+        this.fileSize = fileSize;
         hm = hmForMonitoring;
     }
 
 
+    /**
+     * Sets dispatcher for the next file. Should be called before workers are started.
+     */
+    public void setNext(BytesDispatcher next) {
+        this.next = next;
+    }
 
-    public byte[] getNewEmptyWorkRange() {
-        return new byte[workRangeSize];
+    public BytesDispatcher getNext() {
+        return next;
     }
 
-    public synchronized int readWorkRange(byte[] range) {
+    /**
+     * Reads the next work range of the file into a buffer from the pool.
+     * @return buffer prepared for reading (position is 0, limit is data length),
+     *         or null if there is no more data
+     */
+    public ByteBuffer readWorkRange() {
+        long offset = claimWorkRange();
+        if (offset == -1) {
+            return null;
+        }
+        int len = (int) Math.min(workRangeSize, fileSize - offset);
+
+        ByteBuffer range = pool.acquire();
+        range.limit(len);
         try {
-            int read = 0;
-            while (read < range.length) {
-                int r = is.read(range, read, range.length - read);
+            while (range.hasRemaining()) {
+                int r = channel.read(range, offset + range.position());
                 if (r == -1) {
-                    break;
-                }
-                read += r;
-            }
-
-            bytesRead += read;
-            /*
-            if ((bytesRead & ((1 << 29) - 1)) == 0) { // 512 Mb
-                Tool.debug(logger, "Processed " + (bytesRead >> 20) + " Mb of data:");
-                if (hm != null) {
-                    Tool.debug(logger, "Total hm size = " + NumUtils.groupDigits(hm.size()) + ", " +
-                            "size in hm.maps = {" + NumUtils.groupDigits(hm.maps[0].size()) + ", "
-                            + NumUtils.groupDigits(hm.maps[1].size()) + ", "
-                            + NumUtils.groupDigits(hm.maps[2].size()) + ", "
-                            + NumUtils.groupDigits(hm.maps[3].size()) + ", ...}");
+                    throw new IOException("Unexpected end of file, file was truncated while reading");
                 }
-                Tool.debug(logger, "Available memory (without running GC) = " + Misc.availableMemoryWithoutRunningGCAsString());
             }
-            */
-            return read;
         } catch (IOException e) {
+            pool.release(range);
             throw new RuntimeException(e);
         }
+        range.flip();
+
+        addBytesRead(len);
+        return range;
+    }
+
+    public void releaseWorkRange(ByteBuffer range) {
+        pool.release(range);
+    }
+
+    /**
+     * Stops reading this and all following files.
+     */
+    public void interrupt() {
+        stopped = true;
+        if (next != null) {
+            next.interrupt();
+        }
+    }
+
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+
+    /**
+     * @return offset of the next work range in the file, or -1 if there is no more data
+     */
+    protected long claimWorkRange() {
+        return claim(nextOffset, workRangeSize, fileSize);
+    }
+
+    /**
+     * Atomically moves the counter by step.
+     * @return previous counter value, or -1 if it isn't less than limit or the dispatcher is stopped
+     */
+    protected long claim(AtomicLong counter, long step, long limit) {
+        if (stopped) {
+            return -1;
+        }
+        long value = counter.getAndAdd(step);
+        if (value == 0) {
+            Tool.info(fileLogger, "Loading file " + file.getName() + "...");
+        }
+        return (value < limit) ? value : -1;
+    }
+
+    protected void addBytesRead(int len) {
+        long read = bytesRead.addAndGet(len);
+        if ((read >> 30) != ((read - len) >> 30)) {   // every 1 Gb
+            printProgress(read);
+        }
+    }
+
+    private void printProgress(long read) {
+        Tool.debug(logger, "Processed " + NumUtils.memoryAsString(read) + " of data");
+        if (hm != null) {
+            Tool.debug(logger, "Total hm size = " + NumUtils.groupDigits(hm.size()) + ", " +
+                    "size in hm.maps = {" + NumUtils.groupDigits(hm.maps[0].size()) + ", "
+                    + NumUtils.groupDigits(hm.maps[1].size()) + ", "
+                    + NumUtils.groupDigits(hm.maps[2].size()) + ", "
+                    + NumUtils.groupDigits(hm.maps[3].size()) + ", ...}");
+        }
+        Tool.debug(logger, "Available memory (without running GC) = " + Misc.availableMemoryWithoutRunningGCAsString());
     }
 }
@@ -1,15 +1,27 @@
 package io;
 
+import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.concurrent.CountDownLatch;
 
 public abstract class BytesWorker implements Runnable {
 
     private BytesDispatcher dispatcher = null;
     private CountDownLatch latch = null;
+    private volatile Throwable error = null;
+    private volatile File errorFile = null;
 
     boolean interrupted = false;
 
+    /**
+     * Number of the file (from 0) in the run, which the data being processed is from.
+     */
+    protected int fileNumber = 0;
 
+
+    /**
+     * @param dispatcher the first dispatcher in the chain of dispatchers for all files
+     */
     void setDispatcher(BytesDispatcher dispatcher) {
         this.dispatcher = dispatcher;
     }
@@ -17,24 +29,52 @@ public abstract class BytesWorker implements Runnable {
         this.latch = latch;
     }
 
+    /**
+     * @return exception thrown while reading or processing data, or null
+     */
+    Throwable getError() {
+        return error;
+    }
+    File getErrorFile() {
+        return errorFile;
+    }
+
 
 
-    public abstract void process(byte[] range, int len);
+    /**
+     * Processes data from range's position to its limit.
+     * Range is returned to the pool afterwards, so it mustn't be stored.
+     */
+    public abstract void process(ByteBuffer range);
 
     @Override
     public void run() {
         if (dispatcher == null || latch == null) {
             throw new RuntimeException("Not full initialization!");
         }
-        while (!interrupted) {
-            byte[] range = dispatcher.getNewEmptyWorkRange();
-            int r = dispatcher.readWorkRange(range);
-            if (r <= 0) {
-                break;
+        BytesDispatcher dispatcher = this.dispatcher;
+        fileNumber = 0;
+        try {
+            while (dispatcher != null && !interrupted) {
+                ByteBuffer range = dispatcher.readWorkRange();
+                if (range == null) {
+                    dispatcher = dispatcher.getNext();  // going to the next file
+                    fileNumber++;
+                    continue;
+                }
+                try {
+                    process(range);
+                } finally {
+                    dispatcher.releaseWorkRange(range);
+                }
             }
-            process(range, r);
+        } catch (Throwable e) {
+            error = e;
+            errorFile = dispatcher.file;
+            dispatcher.interrupt();
+        } finally {
+            latch.countDown();
         }
-        latch.countDown();
     }
 
     public void interrupt() {
@@ -0,0 +1,21 @@
+package io;
+
+/**
+ * Reads worker processing canonical k-mers only.
+ */
+public abstract class CanonicalKmersWorker extends ReadsBytesWorker {
+
+    protected CanonicalKmersWorker(int k, int minReadLen) {
+        super(k, minReadLen);
+    }
+
+    /**
+     * Is called for every canonical k-mer (minimum of forward and reverse-complement representations).
+     */
+    public abstract void processKmer(long kmer);
+
+    @Override
+    protected final void processKmer(long fw, long rc, boolean firstInRead) {
+        processKmer(Math.min(fw, rc));
+    }
+}
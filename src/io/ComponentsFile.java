@@ -0,0 +1,138 @@
+package io;
+
+import structures.ConnectedComponent;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Binary components file formats.<br></br>
+ * <br></br>
+ * Version 1: int components, then for every component: int size, long weight, size * long kmer.<br></br>
+ * <br></br>
+ * Version 2: components with sorted k-mers and an index for random access by component number.
+ * <pre>
+ *   header:      long MAGIC, int version, int flags, int components, long kmers, long indexOffset
+ *   components:  int size, long weight, int payloadLength, payload
+ *                (sorted k-mers, as varint deltas from the previous one if FLAG_COMPRESSED is set
+ *                 (from 0 for the first one), as longs otherwise)
+ *   index:       for every component: long offset
+ * </pre>
+ * All numbers are big-endian, varints are unsigned LEB128.
+ */
+public class ComponentsFile {
+
+    public static final long MAGIC = 0x4D46434F4D505321L;     // "MFCOMPS!"
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 36;
+    public static final int COMPONENT_HEADER_SIZE = 16;
+    public static final int FLAG_COMPRESSED = 1;
+
+    /**
+     * @return format version of components file, 1 for files without header
+     */
+    public static int detectVersion(File file) throws IOException {
+        if (file.length() < HEADER_SIZE) {
+            return 1;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            if (in.readLong() != MAGIC) {
+                return 1;
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported components file version " + version + ", file " + file.getName());
+            }
+            return version;
+        } finally {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Writes components in v2 format, k-mers of components aren't changed.
+     */
+    public static void write(Collection<ConnectedComponent> components, File file, boolean compress)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 24));
+        out.write(new byte[HEADER_SIZE]);     // is rewritten at the end
+        long offset = HEADER_SIZE;
+        long[] offsets = new long[components.size()];
+        long kmers = 0;
+
+        int n = 0;
+        byte[] buffer = new byte[1 << 16];
+        for (ConnectedComponent component : components) {
+            long[] sorted = component.kmers.toLongArray();
+            Arrays.sort(sorted);
+
+            long payloadLength = 0;
+            if (compress) {
+                long prev = 0;
+                for (long kmer : sorted) {
+                    payloadLength += varintLength(kmer - prev);
+                    prev = kmer;
+                }
+            } else {
+                payloadLength = sorted.length * 8L;
+            }
+            if (payloadLength > Integer.MAX_VALUE - COMPONENT_HEADER_SIZE) {
+                throw new IOException("Component with " + sorted.length + " k-mers is too big to be saved");
+            }
+
+            offsets[n++] = offset;
+            out.writeInt(sorted.length);
+            out.writeLong(component.weight);
+            out.writeInt((int) payloadLength);
+            if (compress) {
+                int pos = 0;
+                long prev = 0;
+                for (long kmer : sorted) {
+                    if (pos > buffer.length - 10) {     // max varint size of long
+                        out.write(buffer, 0, pos);
+                        pos = 0;
+                    }
+                    pos = KmersFileWriter.putVarint(buffer, pos, kmer - prev);
+                    prev = kmer;
+                }
+                out.write(buffer, 0, pos);
+            } else {
+                for (long kmer : sorted) {
+                    out.writeLong(kmer);
+                }
+            }
+            offset += COMPONENT_HEADER_SIZE + payloadLength;
+            kmers += sorted.length;
+        }
+
+        long indexOffset = offset;
+        for (long o : offsets) {
+            out.writeLong(o);
+        }
+        out.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.writeLong(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(compress ? FLAG_COMPRESSED : 0);
+            raf.writeInt(components.size());
+            raf.writeLong(kmers);
+            raf.writeLong(indexOffset);
+        } finally {
+            raf.close();
+        }
+    }
+
+    static int varintLength(long value) {
+        int len = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            len++;
+        }
+        return len;
+    }
+}
@@ -0,0 +1,135 @@
+package io;
+
+import structures.ConnectedComponent;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads components from v2 components file (see ComponentsFile) on demand.<br></br>
+ * Only the header and the index are read on opening, components are read from a memory-mapped window,
+ * which is moved when the requested component is out of it.
+ * Isn't thread-safe.
+ */
+public class ComponentsFileReader implements Closeable {
+    static final long WINDOW_SIZE = 1 << 30;
+
+    final File file;
+    final FileChannel channel;
+    final boolean compressed;
+    final int components;
+    final long kmers;
+    final long indexOffset;
+    final long[] offsets;
+
+    MappedByteBuffer window = null;
+    long windowStart, windowEnd;
+
+    public ComponentsFileReader(File file) throws IOException {
+        this.file = file;
+        channel = new FileInputStream(file).getChannel();
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(ComponentsFile.HEADER_SIZE);
+            KmersFile.readFully(channel, buffer, 0);
+            if (buffer.getLong() != ComponentsFile.MAGIC || buffer.getInt() != ComponentsFile.VERSION) {
+                throw new IOException("File " + file.getName() + " isn't a v2 components file");
+            }
+            compressed = (buffer.getInt() & ComponentsFile.FLAG_COMPRESSED) != 0;
+            components = buffer.getInt();
+            kmers = buffer.getLong();
+            indexOffset = buffer.getLong();
+
+            offsets = new long[components];
+            buffer = ByteBuffer.allocate(components * 8);
+            KmersFile.readFully(channel, buffer, indexOffset);
+            buffer.asLongBuffer().get(offsets);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of components in file
+     */
+    public int components() {
+        return components;
+    }
+
+    /**
+     * @return total number of k-mers in all components
+     */
+    public long kmers() {
+        return kmers;
+    }
+
+    /**
+     * @param i component index from 0
+     * @return component with sorted k-mers, its <code>no</code> is set to i + 1
+     */
+    public ConnectedComponent get(int i) throws IOException {
+        long start = offsets[i];
+        long end = (i + 1 < components) ? offsets[i + 1] : indexOffset;
+        ByteBuffer record = map(start, end);
+
+        ConnectedComponent component = new ConnectedComponent();
+        int size = record.getInt();
+        component.weight = record.getLong();
+        int payloadLength = record.getInt();
+        if (payloadLength != record.remaining()) {
+            throw new IOException("Component " + (i + 1) + " is corrupted in file " + file.getName());
+        }
+
+        long[] kmers = new long[size];
+        if (compressed) {
+            long kmer = 0;
+            for (int j = 0; j < size; j++) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = record.get();
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                kmer += delta;
+                kmers[j] = kmer;
+            }
+        } else {
+            record.asLongBuffer().get(kmers);
+        }
+        component.kmers.addElements(0, kmers);
+        component.size = size;
+        component.no = i + 1;
+        return component;
+    }
+
+    /**
+     * @return buffer with bytes [start, end) of file
+     */
+    private ByteBuffer map(long start, long end) throws IOException {
+        if (end - start > Integer.MAX_VALUE) {
+            throw new IOException("Component at offset " + start + " is too big to be mapped, file " + file.getName());
+        }
+        if (window == null || start < windowStart || end > windowEnd) {
+            windowStart = start;
+            windowEnd = Math.max(end, Math.min(start + WINDOW_SIZE, indexOffset));
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart);
+        }
+        ByteBuffer record = window.duplicate();
+        record.position((int) (start - windowStart));
+        record.limit((int) (end - windowStart));
+        return record.slice();
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,333 @@
+package io;
+
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.utils.FileUtils;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Tool;
+import structures.ConnectedComponent;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Memory-mapped index from k-mers of components to numbers of their components.<br></br>
+ * A k-mer can be met in several components and several times in one component (e.g. after random cutting
+ * strategies), so every k-mer has a list of entries, one for each occurrence of the k-mer in a component.
+ * <pre>
+ *   header:      long MAGIC, int version, int k, int prefixBits, int components, long kmers, long entries
+ *   prefixes:    (2^prefixBits + 1) * int, position of the first k-mer with the given prefixBits highest bits
+ *   kmers:       kmers * long, sorted, distinct
+ *   offsets:     (kmers + 1) * int, index of the first entry of the k-mer at the same position,
+ *                only if entries > kmers, otherwise every k-mer has exactly one entry
+ *   components:  entries * int, numbers of components (from 1) of the k-mer's entries, increasing for a k-mer
+ * </pre>
+ * Version 1 files have no entries field and no offsets, they are still read.
+ * All numbers are big-endian. Lookup is a binary search among k-mers with the same prefix,
+ * so only the header is read on opening. Reading methods are thread-safe.
+ */
+public class ComponentsIndex implements Closeable {
+
+    public static final long MAGIC = 0x4D4643494E444558L;     // "MFCINDEX"
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 40;
+    static final int V1_HEADER_SIZE = 32;
+    static final int MAX_PREFIX_BITS = 20;
+    static final int CHUNK_BITS = 27;    // elements in one mapped chunk, 1 Gb for k-mers
+
+    final File file;
+    final FileChannel channel;
+    final int k;
+    final int components;
+    final long kmers;
+    final long entries;
+    final int prefixShift;
+
+    final IntBuffer prefixes;
+    final LongBuffer[] kmersChunks;
+    final IntBuffer[] offsetsChunks;   // null if every k-mer has one entry
+    final IntBuffer[] componentsChunks;
+
+    public ComponentsIndex(File file) throws IOException {
+        this.file = file;
+        channel = new FileInputStream(file).getChannel();
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+            KmersFile.readFully(channel, buffer, 0);
+            if (buffer.getLong() != MAGIC) {
+                throw new IOException("File " + file.getName() + " isn't a components index file");
+            }
+            int version = buffer.getInt();
+            if (version != 1 && version != VERSION) {
+                throw new IOException("Unsupported components index version " + version + ", file " + file.getName());
+            }
+            k = buffer.getInt();
+            int prefixBits = buffer.getInt();
+            components = buffer.getInt();
+            kmers = buffer.getLong();
+            entries = (version == 1) ? kmers : buffer.getLong();
+            prefixShift = 2 * k - prefixBits;
+
+            long offset = (version == 1) ? V1_HEADER_SIZE : HEADER_SIZE;
+            long prefixesCount = (1L << prefixBits) + 1;
+            prefixes = channel.map(FileChannel.MapMode.READ_ONLY, offset, prefixesCount * 4).asIntBuffer();
+            offset += prefixesCount * 4;
+
+            int chunks = chunks(kmers);
+            kmersChunks = new LongBuffer[chunks];
+            for (int i = 0; i < chunks; i++) {
+                kmersChunks[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        offset + ((long) i << CHUNK_BITS) * 8, chunkSize(kmers, i) * 8).asLongBuffer();
+            }
+            offset += kmers * 8;
+            if (entries != kmers) {
+                offsetsChunks = mapInts(offset, kmers + 1);
+                offset += (kmers + 1) * 4;
+            } else {
+                offsetsChunks = null;
+            }
+            componentsChunks = mapInts(offset, entries);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private IntBuffer[] mapInts(long offset, long count) throws IOException {
+        IntBuffer[] chunks = new IntBuffer[chunks(count)];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                    offset + ((long) i << CHUNK_BITS) * 4, chunkSize(count, i) * 4).asIntBuffer();
+        }
+        return chunks;
+    }
+
+    private static int chunks(long count) {
+        return (int) ((count + (1L << CHUNK_BITS) - 1) >>> CHUNK_BITS);
+    }
+
+    private static long chunkSize(long count, int chunk) {
+        return Math.min(1L << CHUNK_BITS, count - ((long) chunk << CHUNK_BITS));
+    }
+
+    /**
+     * @return index file for the components file, it's placed near it with .idx extension
+     */
+    public static File indexFileFor(File componentsFile) {
+        return new File(componentsFile.getAbsoluteFile().getParentFile(),
+                FileUtils.removeExtension(componentsFile.getName(), ".bin") + ".idx");
+    }
+
+    /**
+     * Opens index of the components file if it exists, is up to date and is built for k.
+     * Otherwise loads components and builds a new index in dir.
+     */
+    public static ComponentsIndex open(File componentsFile, int k, File dir, Logger logger)
+            throws IOException, ExecutionFailedException {
+        File indexFile = indexFileFor(componentsFile);
+        if (indexFile.exists() && indexFile.lastModified() >= componentsFile.lastModified()) {
+            ComponentsIndex index = new ComponentsIndex(indexFile);
+            if (index.k == k) {
+                Tool.debug(logger, "Components index loaded from " + indexFile);
+                return index;
+            }
+            index.close();
+            Tool.warn(logger, "Components index " + indexFile + " is built for k = " + index.k + ", ignoring it");
+        }
+
+        List<ConnectedComponent> components = ConnectedComponent.loadComponents(componentsFile);
+        indexFile = new File(dir, indexFileFor(componentsFile).getName());
+        write(components, k, indexFile);
+        Tool.debug(logger, "Components index for " + NumUtils.groupDigits(components.size())
+                + " components built in " + indexFile);
+        return new ComponentsIndex(indexFile);
+    }
+
+
+    /**
+     * Writes index for components numbered from 1 in the list order.
+     */
+    public static void write(List<ConnectedComponent> components, int k, File file) throws IOException {
+        long total = 0;
+        for (ConnectedComponent component : components) {
+            total += component.kmers.size();
+        }
+        if (total > Integer.MAX_VALUE - 8) {
+            throw new IOException("Too many k-mers in components to be indexed: " + total);
+        }
+
+        long[] all = new long[(int) total];
+        int n = 0;
+        for (ConnectedComponent component : components) {
+            component.kmers.getElements(0, all, n, component.kmers.size());
+            n += component.kmers.size();
+        }
+        Arrays.parallelSort(all);
+        n = 0;
+        for (int i = 0; i < all.length; i++) {
+            if (i == 0 || all[i] != all[i - 1]) {
+                all[n++] = all[i];
+            }
+        }
+        long[] kmers = (n == all.length) ? all : Arrays.copyOf(all, n);
+        all = null;
+
+        // offsets[pos] is the first entry of the k-mer at pos, entries are filled in order of components
+        int[] offsets = new int[kmers.length + 1];
+        for (ConnectedComponent component : components) {
+            for (int j = 0; j < component.kmers.size(); j++) {
+                offsets[Arrays.binarySearch(kmers, component.kmers.getLong(j)) + 1]++;
+            }
+        }
+        for (int pos = 0; pos < kmers.length; pos++) {
+            offsets[pos + 1] += offsets[pos];
+        }
+        int[] componentNumbers = new int[(int) total];
+        int[] filled = Arrays.copyOf(offsets, kmers.length);
+        for (int i = 0; i < components.size(); i++) {
+            ConnectedComponent component = components.get(i);
+            for (int j = 0; j < component.kmers.size(); j++) {
+                int pos = Arrays.binarySearch(kmers, component.kmers.getLong(j));
+                componentNumbers[filled[pos]++] = i + 1;
+            }
+        }
+        filled = null;
+
+        int prefixBits = Math.min(2 * k, prefixBits(kmers.length));
+        int prefixShift = 2 * k - prefixBits;
+        int[] prefixes = new int[(1 << prefixBits) + 1];
+        for (long kmer : kmers) {
+            prefixes[(int) (kmer >>> prefixShift) + 1]++;
+        }
+        for (int i = 1; i < prefixes.length; i++) {
+            prefixes[i] += prefixes[i - 1];
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 24));
+        try {
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(k);
+            out.writeInt(prefixBits);
+            out.writeInt(components.size());
+            out.writeLong(kmers.length);
+            out.writeLong(componentNumbers.length);
+            for (int p : prefixes) {
+                out.writeInt(p);
+            }
+            for (long kmer : kmers) {
+                out.writeLong(kmer);
+            }
+            if (componentNumbers.length != kmers.length) {
+                for (int offset : offsets) {
+                    out.writeInt(offset);
+                }
+            }
+            for (int no : componentNumbers) {
+                out.writeInt(no);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * About 4 k-mers for every prefix.
+     */
+    static int prefixBits(long kmers) {
+        return Math.max(0, Math.min(MAX_PREFIX_BITS, 61 - Long.numberOfLeadingZeros(kmers)));
+    }
+
+
+    public int k() {
+        return k;
+    }
+
+    /**
+     * @return number of components
+     */
+    public int components() {
+        return components;
+    }
+
+    /**
+     * @return number of distinct k-mers in all components
+     */
+    public long kmers() {
+        return kmers;
+    }
+
+    /**
+     * @return number of entries, i.e. of k-mers in all components counted with multiplicity
+     */
+    public long entries() {
+        return entries;
+    }
+
+    /**
+     * @return position of the k-mer in index, or -1 if it isn't in components
+     */
+    public long position(long kmer) {
+        int prefix = (int) (kmer >>> prefixShift);
+        long lo = prefixes.get(prefix), hi = prefixes.get(prefix + 1) - 1L;
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            long midKmer = kmerAt(mid);
+            if (midKmer < kmer) {
+                lo = mid + 1;
+            } else if (midKmer > kmer) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return number of the first component (from 1) containing the k-mer, or 0 if there is no such component
+     */
+    public int componentOf(long kmer) {
+        long pos = position(kmer);
+        return pos < 0 ? 0 : componentAt(pos);
+    }
+
+    public long kmerAt(long pos) {
+        return kmersChunks[(int) (pos >>> CHUNK_BITS)].get((int) (pos & ((1 << CHUNK_BITS) - 1)));
+    }
+
+    /**
+     * @return number of the first component (from 1) containing the k-mer at the position
+     */
+    public int componentAt(long pos) {
+        return componentOfEntry(firstEntry(pos));
+    }
+
+    /**
+     * @return index of the first entry of the k-mer at the position, entries of the k-mer
+     *         are [firstEntry(pos), firstEntry(pos + 1)); pos can be equal to kmers()
+     */
+    public long firstEntry(long pos) {
+        if (offsetsChunks == null) {
+            return pos;
+        }
+        return offsetsChunks[(int) (pos >>> CHUNK_BITS)].get((int) (pos & ((1 << CHUNK_BITS) - 1)));
+    }
+
+    /**
+     * @return number of component (from 1) of the entry
+     */
+    public int componentOfEntry(long entry) {
+        return componentsChunks[(int) (entry >>> CHUNK_BITS)].get((int) (entry & ((1 << CHUNK_BITS) - 1)));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,153 @@
+package io;
+
+import structures.FeaturesVector;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Distances between features vectors calculated by previous run, with digests of the vectors.
+ * Distance depends only on the pair of vectors, so it can be reused for vectors with the same digests.<br></br>
+ * <br></br>
+ * Binary format:
+ * <pre>
+ *   header:     long MAGIC, int version, int metricLength, metric name in UTF-8, int vectors
+ *   digests:    vectors * DIGEST_SIZE bytes
+ *   distances:  vectors * (vectors - 1) / 2 doubles, upper triangle of the matrix by rows
+ * </pre>
+ * All numbers are big-endian.
+ */
+public class DistancesCache {
+
+    public static final long MAGIC = 0x4D46444953545321L;     // "MFDISTS!"
+    public static final int VERSION = 1;
+    public static final int DIGEST_SIZE = 16;
+
+    public final String metric;
+    public final byte[][] digests;
+    public final double[][] matrix;
+
+    public DistancesCache(String metric, byte[][] digests, double[][] matrix) {
+        this.metric = metric;
+        this.digests = digests;
+        this.matrix = matrix;
+    }
+
+    /**
+     * @return MD5 digest of the vector's length and non-zero values with their indices,
+     * it doesn't depend on dense or sparse form of the vector
+     */
+    public static byte[] digest(FeaturesVector vector) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(12 << 10);
+        buffer.putInt(vector.length);
+        for (int i = 0; i < vector.size(); i++) {
+            if (vector.values[i] != 0) {
+                if (buffer.remaining() < 12) {
+                    md.update(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+                buffer.putInt(vector.isSparse() ? vector.indices[i] : i);
+                buffer.putLong(vector.values[i]);
+            }
+        }
+        md.update(buffer.array(), 0, buffer.position());
+        return md.digest();
+    }
+
+    public static DistancesCache read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 20));
+        try {
+            if (in.readLong() != MAGIC) {
+                throw new IOException("File " + file.getName() + " isn't a distances cache");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported distances cache version " + version + ", file " + file.getName());
+            }
+            int metricLength = in.readInt();
+            if (metricLength < 0 || metricLength > file.length()) {
+                throw new EOFException();
+            }
+            byte[] metricBytes = new byte[metricLength];
+            in.readFully(metricBytes);
+            int n = in.readInt();
+            if (n < 0 || 20L + metricLength + n * (long) DIGEST_SIZE + n * (n - 1L) / 2 * 8 != file.length()) {
+                throw new EOFException();
+            }
+
+            byte[][] digests = new byte[n][DIGEST_SIZE];
+            for (byte[] digest : digests) {
+                in.readFully(digest);
+            }
+            double[][] matrix = new double[n][n];
+            for (int i = 0; i < n; i++) {
+                for (int j = i + 1; j < n; j++) {
+                    matrix[i][j] = matrix[j][i] = in.readDouble();
+                }
+            }
+            return new DistancesCache(new String(metricBytes, StandardCharsets.UTF_8), digests, matrix);
+        } catch (EOFException e) {
+            throw new IOException("Distances cache " + file.getName() + " is corrupted", e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the cache to a temporary file in the same directory and renames it to file,
+     * so a failed writing doesn't spoil the previous cache.
+     */
+    public void write(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmpFile = File.createTempFile(file.getName() + ".", ".tmp", dir);
+        boolean written = false;
+        try {
+            writeTo(tmpFile);
+            try {
+                Files.move(tmpFile.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    private void writeTo(File file) throws IOException {
+        byte[] metricBytes = metric.getBytes(StandardCharsets.UTF_8);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+        try {
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(metricBytes.length);
+            out.write(metricBytes);
+            out.writeInt(digests.length);
+            for (byte[] digest : digests) {
+                out.write(digest);
+            }
+            for (int i = 0; i < matrix.length; i++) {
+                for (int j = i + 1; j < matrix.length; j++) {
+                    out.writeDouble(matrix[i][j]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package io;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.io.ReadersUtils;
+import ru.ifmo.genetics.statistics.QuickQuantitativeStatistics;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Tool;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Counts k-mers using disk, when the hash map with all k-mers doesn't fit into memory.<br></br>
+ * While reading reads, canonical k-mers are partitioned by their prefix into bucket files,
+ * every worker sorts its buffered k-mers and writes them as (kmer, count) chunks.
+ * Then buckets are counted one by one in memory, and as buckets are ordered by k-mer prefix,
+ * good k-mers are written to the output file in ascending order.
+ */
+public class ExternalKmersCounter {
+    /**
+     * Estimated memory per k-mer for BigLong2ShortHashMap (load factor 0.375..0.75) and sorting before printing.
+     */
+    public static final int MEMORY_PER_KMER = 40;
+    static final int MAX_BUCKETS = 512;
+    static final int SKEW_FACTOR = 4;   // canonical k-mers are distributed among prefixes non-uniformly
+
+    final int k;
+    final File tmpDir;
+    final int availableProcessors;
+    final Logger logger;
+
+    final int bucketsNumber;
+    final int bucketShift;
+    final int chunkSize;
+
+    // results
+    public long kmers = 0, goodKmers = 0;
+
+
+    public ExternalKmersCounter(int k, long memoryBudget, long estimatedKmers, File tmpDir,
+                                int availableProcessors, Logger logger) {
+        this.k = k;
+        this.tmpDir = tmpDir;
+        this.availableProcessors = availableProcessors;
+        this.logger = logger;
+
+        long buckets = SKEW_FACTOR * (estimatedKmers * MEMORY_PER_KMER / memoryBudget + 1);
+        int bucketBits = 1;
+        while ((1L << bucketBits) < buckets && (1 << bucketBits) < MAX_BUCKETS && bucketBits < 2 * k) {
+            bucketBits++;
+        }
+        bucketsNumber = 1 << bucketBits;
+        bucketShift = 2 * k - bucketBits;
+
+        // a quarter of the budget for workers' buffers
+        long chunk = memoryBudget / 4 / ((long) availableProcessors * bucketsNumber * 8);
+        chunkSize = (int) Math.max(1 << 8, Math.min(chunk, 1 << 16));
+    }
+
+
+    /**
+     * @return upper bound of the number of distinct k-mers in reads files, estimated by files' sizes
+     */
+    public static long estimateKmersNumber(File[] files, int k) throws IOException {
+        long bases = 0;
+        for (File file : files) {
+            String format = ReadersUtils.detectFileFormat(file);
+            long size = file.length();
+            if (format.endsWith(".gz") || format.endsWith(".bz2")) {
+                size *= 4;
+            }
+            if (format.startsWith("fastq") || format.startsWith("binq")) {
+                size /= 2;  // qualities
+            }
+            bases += size;
+        }
+        long allKmers = (k >= 32) ? Long.MAX_VALUE : (1L << (2 * k)) / 2;
+        return Math.min(bases, allKmers);
+    }
+
+    public static boolean fitsInMemory(long estimatedKmers, long memoryBudget) {
+        return estimatedKmers <= memoryBudget / MEMORY_PER_KMER;
+    }
+
+
+    /**
+     * Counts k-mers in reads files and prints k-mers with frequency greater than threshold
+     * to outFile in v2 format.
+     * @return number of printed k-mers
+     */
+    public long count(File[] readsFiles, int threshold, File outFile, File stFile)
+            throws ExecutionFailedException, IOException {
+        Tool.info(logger, "Counting k-mers using disk, " + bucketsNumber + " buckets");
+        tmpDir.mkdirs();
+        File[] bucketFiles = new File[bucketsNumber];
+        DataOutputStream[] outs = new DataOutputStream[bucketsNumber];
+        try {
+            for (int i = 0; i < bucketsNumber; i++) {
+                bucketFiles[i] = new File(tmpDir, "bucket-" + i + ".bin");
+                outs[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(bucketFiles[i]), 1 << 16));
+            }
+
+            // splitting k-mers to buckets
+            BucketsWriteWorker[] workers = new BucketsWriteWorker[availableProcessors];
+            for (int i = 0; i < workers.length; ++i) {
+                workers[i] = new BucketsWriteWorker(outs);
+            }
+            IOUtils.run(readsFiles, workers, null, logger);
+            for (BucketsWriteWorker worker : workers) {
+                worker.flushAll();
+            }
+            long bucketsSize = 0;
+            for (int i = 0; i < bucketsNumber; i++) {
+                outs[i].close();
+                outs[i] = null;
+                bucketsSize += bucketFiles[i].length();
+            }
+            Tool.debug(logger, NumUtils.memoryAsString(bucketsSize) + " of k-mers written to buckets");
+
+            // counting every bucket
+            QuickQuantitativeStatistics<Short> stats = new QuickQuantitativeStatistics<Short>();
+            KmersFileWriter writer = new KmersFileWriter(outFile, k);
+            for (int i = 0; i < bucketsNumber; i++) {
+                BigLong2ShortHashMap hm = countBucket(bucketFiles[i]);
+                bucketFiles[i].delete();
+
+                LongArrayList good = new LongArrayList();
+                Iterator<MutableLongShortEntry> it = hm.entryIterator();
+                while (it.hasNext()) {
+                    MutableLongShortEntry entry = it.next();
+                    stats.add(entry.getValue());
+                    if (entry.getValue() > threshold) {
+                        good.add(entry.getKey());
+                    }
+                }
+                long[] bucketKmers = good.toLongArray();
+                good = null;
+                Arrays.parallelSort(bucketKmers);
+                for (long kmer : bucketKmers) {
+                    writer.write(kmer, hm.get(kmer));
+                }
+                kmers += hm.size();
+                goodKmers += bucketKmers.length;
+            }
+            writer.close();
+
+            stats.printToFile(stFile, "# k-mer frequency\tnumber of such k-mers");
+            return goodKmers;
+        } finally {
+            deleteBuckets(bucketFiles, outs);
+        }
+    }
+
+    /**
+     * Closes buckets which are still open and deletes all bucket files with temporary directory.
+     */
+    private void deleteBuckets(File[] bucketFiles, DataOutputStream[] outs) {
+        for (int i = 0; i < bucketsNumber; i++) {
+            if (outs[i] != null) {
+                try {
+                    outs[i].close();
+                } catch (IOException e) {
+                    // the file is deleted anyway
+                }
+            }
+            if (bucketFiles[i] != null) {
+                bucketFiles[i].delete();
+            }
+        }
+        tmpDir.delete();
+    }
+
+    private BigLong2ShortHashMap countBucket(File bucketFile) throws ExecutionFailedException, IOException {
+        final BigLong2ShortHashMap hm = new BigLong2ShortHashMap(
+                (int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12);
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(bucketFile), 1 << 20));
+        final long[] remaining = {bucketFile.length()};
+        final CountDownLatch latch = new CountDownLatch(availableProcessors);
+        final Throwable[] error = new Throwable[1];
+
+        for (int i = 0; i < availableProcessors; i++) {
+            IOUtils.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] payload = new byte[chunkSize * (10 + 3)];
+                    ByteBuffer records = ByteBuffer.allocate(chunkSize * KmersLoadWorker.KMER_RECORD_SIZE);
+                    LocalKmersCounter counter = new LocalKmersCounter(hm);
+                    try {
+                        while (true) {
+                            int n, len;
+                            synchronized (in) {
+                                if (error[0] != null || remaining[0] == 0) {
+                                    break;
+                                }
+                                n = in.readInt();
+                                len = in.readInt();
+                                in.readFully(payload, 0, len);
+                                remaining[0] -= 8 + len;
+                            }
+                            records.clear();
+                            KmersFile.decodeBlock(payload, 0, len, n, records);
+                            records.flip();
+                            while (records.hasRemaining()) {
+                                long kmer = records.getLong();
+                                counter.add(kmer, records.getShort());
+                            }
+                        }
+                        counter.flush();
+                    } catch (Throwable e) {
+                        synchronized (in) {
+                            error[0] = e;
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new ExecutionFailedException("Thread was interrupted", e);
+        } finally {
+            in.close();
+        }
+        if (error[0] != null) {
+            throw new ExecutionFailedException("Can't count k-mers in bucket " + bucketFile.getName() + ": " +
+                    error[0].getMessage(), error[0]);
+        }
+        return hm;
+    }
+
+
+    class BucketsWriteWorker extends CanonicalKmersWorker {
+        final DataOutputStream[] outs;
+        final long[][] buffers = new long[bucketsNumber][];
+        final int[] sizes = new int[bucketsNumber];
+        final byte[] payload = new byte[chunkSize * (10 + 3)];
+
+        BucketsWriteWorker(DataOutputStream[] outs) {
+            super(ExternalKmersCounter.this.k, 0);
+            this.outs = outs;
+        }
+
+        @Override
+        public void processKmer(long kmer) {
+            int b = (int) (kmer >>> bucketShift);
+            if (buffers[b] == null) {
+                buffers[b] = new long[chunkSize];
+            }
+            buffers[b][sizes[b]++] = kmer;
+            if (sizes[b] == chunkSize) {
+                flush(b);
+            }
+        }
+
+        /**
+         * Sorts buffered k-mers and writes them to bucket file as (kmer, count) chunk.
+         */
+        void flush(int b) {
+            long[] buffer = buffers[b];
+            int n = sizes[b];
+            Arrays.sort(buffer, 0, n);
+
+            int records = 0, len = 0;
+            long prev = 0;
+            for (int i = 0; i < n; ) {
+                long kmer = buffer[i];
+                int j = i + 1;
+                while (j < n && buffer[j] == kmer) {
+                    j++;
+                }
+                len = KmersFileWriter.putVarint(payload, len, kmer - prev);
+                len = KmersFileWriter.putVarint(payload, len, Math.min(j - i, Short.MAX_VALUE));
+                prev = kmer;
+                records++;
+                i = j;
+            }
+
+            try {
+                synchronized (outs[b]) {
+                    outs[b].writeInt(records);
+                    outs[b].writeInt(len);
+                    outs[b].write(payload, 0, len);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Can't write k-mers to bucket " + b, e);
+            }
+            sizes[b] = 0;
+        }
+
+        void flushAll() {
+            for (int b = 0; b < bucketsNumber; b++) {
+                if (sizes[b] > 0) {
+                    flush(b);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package io;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import structures.FeaturesVector;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Features values files, one value for every component.<br></br>
+ * <br></br>
+ * Text format: one value per line.<br></br>
+ * <br></br>
+ * Binary format:
+ * <pre>
+ *   header:  long MAGIC, int version, int flags, int components, int nameLength, name in UTF-8
+ *   values:  components * long, or if FLAG_SPARSE is set
+ *            int nonZeros, nonZeros * int index (increasing), nonZeros * long value
+ * </pre>
+ * Version 1 files have no flags and are always dense, they are still read.
+ * All numbers are big-endian. Binary files are memory-mapped on reading.
+ */
+public class FeaturesFile {
+
+    public static final long MAGIC = 0x4D46464541545321L;     // "MFFEATS!"
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 24;
+    static final int V1_HEADER_SIZE = 20;
+
+    public static final int FLAG_SPARSE = 1;
+
+    /**
+     * @return true if the file is in binary format
+     */
+    public static boolean isBinary(File file) throws IOException {
+        if (file.length() < V1_HEADER_SIZE) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readLong() == MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes vector in sparse or dense form, the same as it's stored.
+     * @param name name of the sample the features are calculated for
+     */
+    public static void write(FeaturesVector vector, String name, File file) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+        try {
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(vector.isSparse() ? FLAG_SPARSE : 0);
+            out.writeInt(vector.length);
+            out.writeInt(nameBytes.length);
+            out.write(nameBytes);
+            if (vector.isSparse()) {
+                out.writeInt(vector.size());
+                for (int index : vector.indices) {
+                    out.writeInt(index);
+                }
+            }
+            for (long value : vector.values) {
+                out.writeLong(value);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static void writeText(long[] values, File file) throws IOException {
+        PrintWriter out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file)), 1 << 20));   // 1 Mb buffer
+        for (long value : values) {
+            out.println(value);
+        }
+        out.close();
+        if (out.checkError()) {
+            throw new IOException("Can't write features to file " + file);
+        }
+    }
+
+    /**
+     * Reads features values from file in binary or text format, text files give dense vectors.
+     */
+    public static FeaturesVector read(File file) throws IOException {
+        if (!isBinary(file)) {
+            return FeaturesVector.dense(readText(file));
+        }
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.limit(12);
+            KmersFile.readFully(channel, header, 0);
+            header.getLong();
+            int version = header.getInt();
+            if (version != 1 && version != VERSION) {
+                throw new IOException("Unsupported features file version " + version + ", file " + file.getName());
+            }
+            int headerSize = (version == 1) ? V1_HEADER_SIZE : HEADER_SIZE;
+            header.clear();
+            header.limit(headerSize - 12);
+            KmersFile.readFully(channel, header, 12);
+            boolean sparse = (version != 1) && (header.getInt() & FLAG_SPARSE) != 0;
+            int components = header.getInt();
+            int nameLength = header.getInt();
+
+            long offset = headerSize + nameLength;
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, offset, channel.size() - offset);
+            int nonZeros = sparse ? data.getInt() : components;
+            long size = sparse ? 4 + nonZeros * 12L : components * 8L;
+            if (nonZeros < 0 || nonZeros > components || size != data.capacity()) {
+                throw new IOException("Features file " + file.getName() + " is corrupted");
+            }
+
+            long[] values = new long[nonZeros];
+            if (!sparse) {
+                data.asLongBuffer().get(values);
+                return FeaturesVector.dense(values);
+            }
+            int[] indices = new int[nonZeros];
+            data.asIntBuffer().get(indices);
+            data.position(data.position() + nonZeros * 4);
+            data.asLongBuffer().get(values);
+            return FeaturesVector.sparse(components, indices, values);
+        } finally {
+            channel.close();
+        }
+    }
+
+    static long[] readText(File file) throws IOException {
+        LongArrayList values = new LongArrayList();
+
+        BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 20);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    values.add(Long.parseLong(line));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return values.toLongArray();
+    }
+}
@@ -1,29 +1,51 @@
 package io;
 
+import algo.SuperKmerPartitioner;
 import org.apache.log4j.Logger;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import ru.ifmo.genetics.dna.Dna;
-import ru.ifmo.genetics.dna.kmers.ShortKmer;
 import ru.ifmo.genetics.io.ReadersUtils;
-import ru.ifmo.genetics.io.sources.NamedSource;
 import ru.ifmo.genetics.io.sources.Source;
 import ru.ifmo.genetics.statistics.QuickQuantitativeStatistics;
 import ru.ifmo.genetics.structures.map.ArrayLong2IntHashMap;
 import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMap;
 import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+import ru.ifmo.genetics.structures.set.LongHashSet;
 import ru.ifmo.genetics.utils.NumUtils;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Tool;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class IOUtils {
 
     static final int READS_WORK_RANGE_SIZE = 1 << 15;   // 32 K reads
     static final int KMERS_WORK_RANGE_SIZE = 16777220;   // ~16 Mb of data
+    static final int READS_BYTES_WORK_RANGE_SIZE = 1 << 22;   // 4 Mb of data
+    static final int PARTITIONING_MIN_THREADS = 4;  // with fewer threads partitions' owners and merging don't pay off
+
+    /**
+     * Threads for readers and workers, reused between files and between calls.
+     */
+    static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "io-pool-thread");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
 
 
@@ -38,13 +60,13 @@ public class IOUtils {
 
 
 
-    public static long printKmers(BigLong2ShortHashMap hm, int threshold,
+    /**
+     * Prints k-mers with frequency greater than threshold in v2 format (see KmersFile).
+     */
+    public static long printKmers(BigLong2ShortHashMap hm, int k, int threshold,
                                   File outFile, File stFile) throws IOException {
-        DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(
-                new FileOutputStream(outFile), 1 << 24));   // 16 Mb buffer
-
         QuickQuantitativeStatistics<Short> stats = new QuickQuantitativeStatistics<Short>();
-        long good = 0;
+        LongArrayList good = new LongArrayList();
 
         Iterator<MutableLongShortEntry> it = hm.entryIterator();
         while (it.hasNext()) {
@@ -55,15 +77,22 @@ public class IOUtils {
             stats.add(value);
 
             if (value > threshold) {
-                stream.writeLong(key);
-                stream.writeShort(value);
-                good++;
+                good.add(key);
             }
         }
 
-        stream.close();
+        long[] kmers = good.toLongArray();
+        good = null;
+        Arrays.parallelSort(kmers);
+
+        KmersFileWriter writer = new KmersFileWriter(outFile, k);
+        for (long kmer : kmers) {
+            writer.write(kmer, hm.get(kmer));
+        }
+        writer.close();
+
         stats.printToFile(stFile, "# k-mer frequency\tnumber of such k-mers");
-        return good;
+        return kmers.length;
     }
 
 
@@ -89,11 +118,11 @@ public class IOUtils {
 
     static class Kmers2HMWorker extends KmersLoadWorker {
         Kmers2HMWorker(BigLong2ShortHashMap hm, int freqThreshold) {
-            this.hm = hm;
+            counter = new LocalKmersCounter(hm);
             this.freqThreshold = freqThreshold;
         }
 
-        final BigLong2ShortHashMap hm;
+        final LocalKmersCounter counter;
         final int freqThreshold;
         long kmers = 0, kmersAdded = 0;
         long freqSum = 0, freqSumAdded = 0;
@@ -103,7 +132,7 @@ public class IOUtils {
             kmers++;
             freqSum += freq;
             if (freq > freqThreshold) {
-                hm.addAndBound(kmer, freq);
+                counter.add(kmer, freq);
                 kmersAdded++;
                 freqSumAdded += freq;
             }
@@ -122,6 +151,9 @@ public class IOUtils {
         }
 
         run(files, workers, hm, logger);
+        for (Kmers2HMWorker worker : workers) {
+            worker.counter.flush();
+        }
 
         // calculating statistics...
         long kmers = 0, kmersAdded = 0;
@@ -167,68 +199,153 @@ public class IOUtils {
         run(files, workers, null, logger);
     }
 
+    static class KmersIndexPresenceWorker extends KmersLoadWorker {
+        KmersIndexPresenceWorker(ComponentsIndex index, AtomicLongArray[] counts) {
+            this.index = index;
+            this.counts = counts;
+        }
+        final ComponentsIndex index;
+        final AtomicLongArray[] counts;
+        @Override
+        public void processKmer(long kmer, short freq) {
+            long pos = index.position(kmer);
+            if (pos >= 0) {
+                counts[fileNumber].addAndGet((int) pos, freq);
+            }
+        }
+    }
 
+    /**
+     * Sums frequencies of k-mers from components in one pass over all files,
+     * counts[i] is for files[i] and is indexed by positions of k-mers in index.
+     */
+    public static void calculatePresenceForKmers(File[] files, ComponentsIndex index, AtomicLongArray[] counts,
+                                                 int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        BytesWorker[] workers = new BytesWorker[availableProcessors];
+        for (int i = 0; i < workers.length; ++i) {
+            workers[i] = new KmersIndexPresenceWorker(index, counts);
+        }
+        run(files, workers, null, logger);
+    }
+
+
+    /**
+     * Format of every file is detected automatically. Files in v1 format are memory-mapped,
+     * if mapping fails, they are read into pooled buffers.
+     * Workers go through all files without waiting for each other at file boundaries.
+     */
     public static void run(File[] files, BytesWorker[] workers, BigLong2ShortHashMap hmForMonitoring, Logger logger)
             throws ExecutionFailedException {
+        if (files.length == 0) {
+            return;
+        }
+        BytesDispatcher[] dispatchers = new BytesDispatcher[files.length];
         try {
-            for (File file : files) {
-                Tool.info(logger, "Loading file " + file.getName() + "...");
+            BufferPool pool = new BufferPool(KMERS_WORK_RANGE_SIZE, true);    // buffers are allocated on demand
+            for (int i = 0; i < files.length; i++) {
+                dispatchers[i] = newKmersDispatcher(files[i], pool, hmForMonitoring, logger);
+                if (i > 0) {
+                    dispatchers[i - 1].setNext(dispatchers[i]);
+                }
+            }
 
-                InputStream is = new FileInputStream(file);
-                BytesDispatcher dispatcher = new BytesDispatcher(is, KMERS_WORK_RANGE_SIZE, hmForMonitoring);
-                CountDownLatch latch = new CountDownLatch(workers.length);
+            CountDownLatch latch = new CountDownLatch(workers.length);
+            for (BytesWorker worker : workers) {
+                worker.setDispatcher(dispatchers[0]);
+                worker.setLatch(latch);
+                executor.execute(worker);
+            }
 
-                for (int i = 0; i < workers.length; ++i) {
-                    workers[i].setDispatcher(dispatcher);
-                    workers[i].setLatch(latch);
-                    new Thread(workers[i]).start();
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Tool.warn(logger, "Main thread interrupted");
+                for (BytesWorker worker : workers) {
+                    worker.interrupt();
                 }
-
-                try {
-                    latch.await();
-                } catch (InterruptedException e) {
-                    Tool.warn(logger, "Main thread interrupted");
-                    for (BytesWorker worker : workers) {
-                        worker.interrupt();
-                    }
-                    throw new ExecutionFailedException("Thread was interrupted", e);
+                dispatchers[0].interrupt();
+                throw new ExecutionFailedException("Thread was interrupted", e);
+            }
+            for (BytesWorker worker : workers) {
+                if (worker.getError() != null) {
+                    throw new ExecutionFailedException("Can't load k-mers from file " + worker.getErrorFile().getName() +
+                            ": " + worker.getError().getMessage(), worker.getError());
                 }
-                Tool.debug(logger, NumUtils.memoryAsString(dispatcher.bytesRead) + " of data processed");
+            }
+            for (BytesDispatcher dispatcher : dispatchers) {
+                Tool.debug(logger, NumUtils.memoryAsString(dispatcher.bytesRead.get()) + " of data processed, " +
+                        "file " + dispatcher.file.getName());
             }
         } catch (IOException e) {
             throw new ExecutionFailedException("Can't load k-mers file", e);
+        } finally {
+            for (BytesDispatcher dispatcher : dispatchers) {
+                if (dispatcher != null) {
+                    try {
+                        dispatcher.close();
+                    } catch (IOException e) {
+                        // does not matter
+                    }
+                }
+            }
+        }
+    }
+
+
+    private static BytesDispatcher newKmersDispatcher(File file, BufferPool pool,
+                                                      BigLong2ShortHashMap hmForMonitoring, Logger logger)
+            throws IOException {
+        if (KmersFile.detectVersion(file) == KmersFile.VERSION) {
+            return new SortedKmersDispatcher(file, pool, hmForMonitoring, logger);
+        }
+        try {
+            return new MappedBytesDispatcher(file, KMERS_WORK_RANGE_SIZE, hmForMonitoring, logger);
+        } catch (IOException e) {
+            Tool.debug(logger, "Can't memory-map file " + file.getName() + " (" + e.getMessage() + "), " +
+                    "reading it into buffers");
+            return new BytesDispatcher(file, pool, hmForMonitoring, logger);
         }
     }
 
 
     // ---------------------------- for loading reads ----------------------------------
 
-    static class ReadsLoadWorker extends ReadsWorker {
+    /**
+     * Counts k-mers of reads in the shared map via thread-local buffers.
+     */
+    static class ReadsLoadWorker extends CanonicalKmersWorker {
         ReadsLoadWorker(BigLong2ShortHashMap hm, int k, int minDnaLen) {
-            this.hm = hm;
-            this.k = k;
-            this.minDnaLen = minDnaLen;
+            super(k, minDnaLen);
+            counter = new LocalKmersCounter(hm);
         }
 
-        final BigLong2ShortHashMap hm;
-        final int k;
-        final int minDnaLen;
-        int totalSeq = 0, goodSeq = 0;
-        long totalLen = 0, goodLen = 0;
+        final LocalKmersCounter counter;
 
         @Override
-        public void process(List<Dna> reads) {
-            for (Dna dna : reads) {
-                totalSeq++;
-                totalLen += dna.length();
-
-                if (dna.length() >= minDnaLen) {
-                    for (ShortKmer kmer : ShortKmer.kmersOf(dna, k)) {
-                        hm.addAndBound(kmer.toLong(), (short) 1);
-                    }
-                    goodSeq++;
-                    goodLen += dna.length();
-                }
+        public void processKmer(long kmer) {
+            counter.add(kmer, 1);
+        }
+    }
+
+    /**
+     * Routes super-k-mers of reads to partitions' owners.
+     */
+    static class PartitionedLoadWorker extends ReadsBytesWorker {
+        PartitionedLoadWorker(SuperKmerPartitioner partitioner, int k, int minDnaLen) {
+            super(k, minDnaLen);
+            router = partitioner.newRouter();
+        }
+
+        final SuperKmerPartitioner.Router router;
+
+        @Override
+        protected void processKmer(long fw, long rc, boolean firstInRead) {
+            try {
+                router.addKmer(fw, rc, firstInRead);
+            } catch (InterruptedException e) {
+                interrupt();
+                Thread.currentThread().interrupt();
             }
         }
     }
@@ -236,20 +353,28 @@ public class IOUtils {
     public static BigLong2ShortHashMap loadReads(File[] files, int k, int minSeqLen,
                                                  int availableProcessors, Logger logger)
             throws ExecutionFailedException, IOException {
-        BigLong2ShortHashMap hm = new BigLong2ShortHashMap(
-                (int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12, true);
-
-        ReadsLoadWorker[] workers = new ReadsLoadWorker[availableProcessors];
-        for (int i = 0; i < workers.length; ++i) {
-            workers[i] = new ReadsLoadWorker(hm, k, minSeqLen);
-        }
+        return loadReads(files, k, minSeqLen, availableProcessors,
+                availableProcessors >= PARTITIONING_MIN_THREADS, logger);
+    }
 
-        run(files, workers, hm, logger);
+    /**
+     * @param partitioned if true, super-k-mers of reads are routed by minimizer to partitions,
+     *                    every partition is counted in its own hash map by a single thread,
+     *                    then partitions' maps are merged into the resulting map, as its users look k-mers up by hash.
+     *                    Otherwise, workers count k-mers in the resulting map via thread-local buffers.
+     */
+    public static BigLong2ShortHashMap loadReads(File[] files, int k, int minSeqLen, int availableProcessors,
+                                                 boolean partitioned, Logger logger)
+            throws ExecutionFailedException, IOException {
+        ReadsBytesWorker[] workers = new ReadsBytesWorker[availableProcessors];
+        BigLong2ShortHashMap hm = partitioned ?
+                loadReadsPartitioned(files, k, minSeqLen, workers, logger) :
+                loadReadsToSharedMap(files, k, minSeqLen, workers, logger);
 
         // calculating statistics...
         int totalSeq = 0, goodSeq = 0;
         long totalLen = 0, goodLen = 0;
-        for (ReadsLoadWorker worker : workers) {
+        for (ReadsBytesWorker worker : workers) {
             totalSeq += worker.totalSeq;
             goodSeq += worker.goodSeq;
             totalLen += worker.totalLen;
@@ -267,64 +392,306 @@ public class IOUtils {
     }
 
 
-    static class ReadsPresenceWorker extends ReadsWorker {
+    private static BigLong2ShortHashMap loadReadsToSharedMap(File[] files, int k, int minSeqLen,
+                                                             ReadsBytesWorker[] workers, Logger logger)
+            throws ExecutionFailedException, IOException {
+        BigLong2ShortHashMap hm = new BigLong2ShortHashMap(
+                (int) (Math.log(workers.length) / Math.log(2)) + 4, 12, true);
+        for (int i = 0; i < workers.length; ++i) {
+            workers[i] = new ReadsLoadWorker(hm, k, minSeqLen);
+        }
+        run(files, workers, hm, logger);
+        for (ReadsBytesWorker worker : workers) {
+            ((ReadsLoadWorker) worker).counter.flush();
+        }
+        return hm;
+    }
+
+    private static BigLong2ShortHashMap loadReadsPartitioned(File[] files, int k, int minSeqLen,
+                                                             ReadsBytesWorker[] workers, Logger logger)
+            throws ExecutionFailedException, IOException {
+        int availableProcessors = workers.length;
+        final Long2ShortHashMap[] partitions = new Long2ShortHashMap[availableProcessors];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new Long2ShortHashMap(16, LongHashSet.DEFAULT_MAX_LOAD_FACTOR);
+        }
+        SuperKmerPartitioner partitioner = new SuperKmerPartitioner(k,
+                Math.min(k, SuperKmerPartitioner.DEFAULT_MINIMIZER_LENGTH), partitions.length, availableProcessors,
+                new SuperKmerPartitioner.KmerProcessor() {
+                    @Override
+                    public void processKmer(int partition, long kmer) {
+                        partitions[partition].addAndBound(kmer, (short) 1);
+                    }
+                });
+        for (int i = 0; i < workers.length; ++i) {
+            workers[i] = new PartitionedLoadWorker(partitioner, k, minSeqLen);
+        }
+
+        partitioner.start(executor);
+        try {
+            try {
+                run(files, workers, null, logger);
+                for (ReadsBytesWorker worker : workers) {
+                    ((PartitionedLoadWorker) worker).router.flush();
+                }
+            } finally {
+                partitioner.finish();
+            }
+        } catch (InterruptedException e) {
+            throw new ExecutionFailedException("Thread was interrupted", e);
+        }
+        if (partitioner.getError() != null) {
+            throw new ExecutionFailedException("Can't count k-mers: " + partitioner.getError().getMessage(),
+                    partitioner.getError());
+        }
+
+        BigLong2ShortHashMap hm = new BigLong2ShortHashMap(
+                (int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12, true);
+        mergePartitions(partitions, hm, availableProcessors);
+        return hm;
+    }
+
+    /**
+     * Puts k-mers from partitions' maps to hm in parallel, every partition's map is released after merging.
+     */
+    static void mergePartitions(final Long2ShortHashMap[] partitions, final BigLong2ShortHashMap hm,
+                                int availableProcessors) throws ExecutionFailedException {
+        final AtomicInteger nextPartition = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(availableProcessors);
+        for (int i = 0; i < availableProcessors; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int p;
+                        while ((p = nextPartition.getAndIncrement()) < partitions.length) {
+                            Iterator<MutableLongShortEntry> it = partitions[p].entryIterator();
+                            while (it.hasNext()) {
+                                MutableLongShortEntry entry = it.next();
+                                hm.put(entry.getKey(), entry.getValue());
+                            }
+                            partitions[p] = null;
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new ExecutionFailedException("Thread was interrupted", e);
+        }
+    }
+
+
+    static class ReadsPresenceWorker extends CanonicalKmersWorker {
         ReadsPresenceWorker(BigLong2LongHashMap hm, int k) {
+            super(k, 0);
             this.hm = hm;
-            this.k = k;
         }
 
         final BigLong2LongHashMap hm;
-        final int k;
 
         @Override
-        public void process(List<Dna> reads) {
-            for (Dna dna : reads) {
-                for (ShortKmer kmer : ShortKmer.kmersOf(dna, k)) {
-                    if (hm.contains(kmer.toLong())) {
-                        hm.addAndBound(kmer.toLong(), 1);
-                    }
-                }
+        public void processKmer(long kmer) {
+            if (hm.contains(kmer)) {
+                hm.addAndBound(kmer, 1);
             }
         }
     }
 
     public static void calculatePresenceForReads(File[] files, int k, BigLong2LongHashMap hm, int availableProcessors, Logger logger)
             throws ExecutionFailedException, IOException {
-        ReadsWorker[] workers = new ReadsWorker[availableProcessors];
+        ReadsBytesWorker[] workers = new ReadsBytesWorker[availableProcessors];
         for (int i = 0; i < workers.length; ++i) {
             workers[i] = new ReadsPresenceWorker(hm, k);
         }
         run(files, workers, null, logger);
     }
 
+    static class ReadsIndexPresenceWorker extends CanonicalKmersWorker {
+        ReadsIndexPresenceWorker(ComponentsIndex index, AtomicLongArray[] counts, int k) {
+            super(k, 0);
+            this.index = index;
+            this.counts = counts;
+        }
 
+        final ComponentsIndex index;
+        final AtomicLongArray[] counts;
 
-    public static void run(File[] files, ReadsWorker[] workers, BigLong2ShortHashMap hmForMonitoring, Logger logger)
+        @Override
+        public void processKmer(long kmer) {
+            long pos = index.position(kmer);
+            if (pos >= 0) {
+                counts[fileNumber].incrementAndGet((int) pos);
+            }
+        }
+    }
+
+    /**
+     * Counts occurrences of k-mers from components in one pass over all files,
+     * counts[i] is for files[i] and is indexed by positions of k-mers in index.
+     */
+    public static void calculatePresenceForReads(File[] files, ComponentsIndex index, AtomicLongArray[] counts,
+                                                 int availableProcessors, Logger logger)
             throws ExecutionFailedException, IOException {
-        for (File file : files) {
-            Tool.info(logger, "Loading file " + file.getName() + "...");
+        ReadsBytesWorker[] workers = new ReadsBytesWorker[availableProcessors];
+        for (int i = 0; i < workers.length; ++i) {
+            workers[i] = new ReadsIndexPresenceWorker(index, counts, index.k());
+        }
+        run(files, workers, null, logger);
+    }
 
-            NamedSource<Dna> reader = ReadersUtils.readDnaLazy(file);
 
-            ReadsDispatcher dispatcher = new ReadsDispatcher(reader, READS_WORK_RANGE_SIZE, hmForMonitoring);
-            CountDownLatch latch = new CountDownLatch(workers.length);
+    /**
+     * Parses uncompressed FASTA and FASTQ files directly from raw bytes,
+     * other formats are loaded via ReadersUtils readers.
+     * Consecutive files of the same kind are loaded without waiting for workers at file boundaries.
+     */
+    public static void run(File[] files, final ReadsBytesWorker[] workers, BigLong2ShortHashMap hmForMonitoring,
+                           Logger logger) throws ExecutionFailedException, IOException {
+        String[] formats = new String[files.length];
+        for (int i = 0; i < files.length; i++) {
+            formats[i] = ReadersUtils.detectFileFormat(files[i]);
+        }
 
-            for (int i = 0; i < workers.length; ++i) {
-                workers[i].setDispatcher(dispatcher);
-                workers[i].setLatch(latch);
-                new Thread(workers[i]).start();
+        int i = 0;
+        while (i < files.length) {
+            boolean raw = isRawReadsFormat(formats[i]);
+            int j = i;
+            while (j < files.length && isRawReadsFormat(formats[j]) == raw) {
+                j++;
             }
-
-            try {
-                latch.await();
-            } catch (InterruptedException e) {
-                Tool.warn(logger, "Main thread interrupted");
-                for (ReadsWorker worker : workers) {
-                    worker.interrupt();
+            if (raw) {
+                for (ReadsBytesWorker worker : workers) {
+                    worker.firstFileNumber = i;
                 }
-                throw new ExecutionFailedException("Thread was interrupted", e);
+                runRaw(Arrays.copyOfRange(files, i, j), Arrays.copyOfRange(formats, i, j), workers,
+                        hmForMonitoring, logger);
+            } else {
+                ReadsWorker[] dnaWorkers = new ReadsWorker[workers.length];
+                final int firstFileNumber = i;
+                for (int w = 0; w < workers.length; ++w) {
+                    final ReadsBytesWorker worker = workers[w];
+                    dnaWorkers[w] = new ReadsWorker() {
+                        @Override
+                        public void process(List<Dna> reads) {
+                            worker.fileNumber = firstFileNumber + fileNumber;
+                            for (Dna dna : reads) {
+                                worker.process(dna);
+                            }
+                        }
+                    };
+                }
+                run(Arrays.copyOfRange(files, i, j), dnaWorkers, hmForMonitoring, logger);
+            }
+            i = j;
+        }
+    }
+
+    private static boolean isRawReadsFormat(String format) {
+        return format.equals("fasta") || format.equals("fastq");
+    }
+
+    private static void runRaw(File[] files, String[] formats, ReadsBytesWorker[] workers,
+                               BigLong2ShortHashMap hmForMonitoring, Logger logger) throws ExecutionFailedException {
+        ReadsBytesDispatcher[] dispatchers = new ReadsBytesDispatcher[files.length];
+        for (int i = 0; i < files.length; i++) {
+            dispatchers[i] = new ReadsBytesDispatcher(files[i], formats[i].equals("fastq"),
+                    READS_BYTES_WORK_RANGE_SIZE, workers.length + 2, hmForMonitoring, logger);
+            if (i > 0) {
+                dispatchers[i - 1].setNext(dispatchers[i]);
             }
-            Tool.info(logger, NumUtils.groupDigits(dispatcher.reads) + " reads added");
+        }
+        dispatchers[0].start(executor);
+
+        CountDownLatch latch = new CountDownLatch(workers.length);
+        for (ReadsBytesWorker worker : workers) {
+            worker.setDispatcher(dispatchers[0]);
+            worker.setLatch(latch);
+            executor.execute(worker);
+        }
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Tool.warn(logger, "Main thread interrupted");
+            for (ReadsBytesWorker worker : workers) {
+                worker.interrupt();
+            }
+            dispatchers[0].interrupt();
+            throw new ExecutionFailedException("Thread was interrupted", e);
+        }
+
+        for (ReadsBytesDispatcher dispatcher : dispatchers) {
+            checkReaderError(dispatcher);
+        }
+        for (ReadsBytesDispatcher dispatcher : dispatchers) {
+            String fileName = dispatcher.file.getName();
+            Tool.debug(logger, "Pipeline statistics for file " + fileName + ": " + dispatcher.statistics());
+            long reads = dispatcher.reads.get(), skipped = dispatcher.skipped.get();
+            if (skipped != 0) {
+                Tool.debug(logger, "Skipped " + withP(skipped, reads + skipped) + " reads " +
+                        "(because of N nucleotide), file " + fileName);
+            }
+            Tool.info(logger, NumUtils.groupDigits(reads) + " reads added from file " + fileName);
+        }
+    }
+
+
+    /**
+     * Workers go through all files without waiting for each other at file boundaries.
+     */
+    public static void run(File[] files, ReadsWorker[] workers, BigLong2ShortHashMap hmForMonitoring, Logger logger)
+            throws ExecutionFailedException, IOException {
+        if (files.length == 0) {
+            return;
+        }
+        ReadsDispatcher[] dispatchers = new ReadsDispatcher[files.length];
+        for (int i = 0; i < files.length; i++) {
+            dispatchers[i] = new ReadsDispatcher(files[i], READS_WORK_RANGE_SIZE, workers.length + 2,
+                    hmForMonitoring, logger);
+            if (i > 0) {
+                dispatchers[i - 1].setNext(dispatchers[i]);
+            }
+        }
+        dispatchers[0].start(executor);
+
+        CountDownLatch latch = new CountDownLatch(workers.length);
+        for (ReadsWorker worker : workers) {
+            worker.setDispatcher(dispatchers[0]);
+            worker.setLatch(latch);
+            executor.execute(worker);
+        }
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Tool.warn(logger, "Main thread interrupted");
+            for (ReadsWorker worker : workers) {
+                worker.interrupt();
+            }
+            dispatchers[0].interrupt();
+            throw new ExecutionFailedException("Thread was interrupted", e);
+        }
+
+        for (ReadsDispatcher dispatcher : dispatchers) {
+            checkReaderError(dispatcher);
+        }
+        for (ReadsDispatcher dispatcher : dispatchers) {
+            String fileName = dispatcher.file.getName();
+            Tool.debug(logger, "Pipeline statistics for file " + fileName + ": " + dispatcher.statistics());
+            Tool.info(logger, NumUtils.groupDigits(dispatcher.reads) + " reads added from file " + fileName);
+        }
+    }
+
+    private static void checkReaderError(PipelinedDispatcher<?> dispatcher) throws ExecutionFailedException {
+        Throwable error = dispatcher.getError();
+        if (error != null) {
+            throw new ExecutionFailedException("Can't read file " + dispatcher.file.getName() + ": " +
+                    error.getMessage(), error);
         }
     }
 
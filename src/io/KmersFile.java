@@ -0,0 +1,164 @@
+package io;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary k-mers file formats.<br></br>
+ * <br></br>
+ * Version 1: unsorted (long kmer, short freq) records without header.<br></br>
+ * <br></br>
+ * Version 2: k-mers sorted in ascending order and split into blocks of blockRecords records.
+ * <pre>
+ *   header:  long MAGIC, int version, int k, long records, int blockRecords, int blocks, long indexOffset
+ *   blocks:  int payloadLength, int payloadCRC32, payload
+ *            (for every record: varint delta from the previous k-mer in the block (from 0 for the first one),
+ *             varint frequency)
+ *   index:   for every block: long firstKmer, long blockOffset
+ * </pre>
+ * All numbers are big-endian, varints are unsigned LEB128.
+ */
+public class KmersFile {
+
+    public static final long MAGIC = 0x4D464B4D45525321L;     // "MFKMERS!", isn't a valid v1 k-mer for k <= 31
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 40;
+    public static final int INDEX_ENTRY_SIZE = 16;
+    public static final int DEFAULT_BLOCK_RECORDS = 1 << 14;
+
+    /**
+     * Header and index of v2 file.
+     */
+    public static class Header {
+        public int k;
+        public long records;
+        public int blockRecords;
+        public int blocks;
+        public long indexOffset;
+        public long[] blockFirstKmer;
+        public long[] blockOffset;
+
+        public int recordsInBlock(int block) {
+            return (block < blocks - 1) ? blockRecords : (int) (records - (long) (blocks - 1) * blockRecords);
+        }
+
+        public long blockEnd(int block) {
+            return (block < blocks - 1) ? blockOffset[block + 1] : indexOffset;
+        }
+    }
+
+
+    /**
+     * @return format version of k-mers file, 1 for files without header
+     */
+    public static int detectVersion(File file) throws IOException {
+        if (file.length() < HEADER_SIZE) {
+            return 1;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            if (in.readLong() != MAGIC) {
+                return 1;
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported k-mers file version " + version + ", file " + file.getName());
+            }
+            return version;
+        } finally {
+            in.close();
+        }
+    }
+
+    public static Header readHeader(FileChannel channel, File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, buffer, 0);
+        if (buffer.getLong() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("File " + file.getName() + " isn't a v2 k-mers file");
+        }
+        Header header = new Header();
+        header.k = buffer.getInt();
+        header.records = buffer.getLong();
+        header.blockRecords = buffer.getInt();
+        header.blocks = buffer.getInt();
+        header.indexOffset = buffer.getLong();
+
+        header.blockFirstKmer = new long[header.blocks];
+        header.blockOffset = new long[header.blocks];
+        buffer = ByteBuffer.allocate(header.blocks * INDEX_ENTRY_SIZE);
+        readFully(channel, buffer, header.indexOffset);
+        for (int i = 0; i < header.blocks; i++) {
+            header.blockFirstKmer[i] = buffer.getLong();
+            header.blockOffset[i] = buffer.getLong();
+        }
+        return header;
+    }
+
+    public static Header readHeader(File file) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            return readHeader(channel, file);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads buffer's remaining bytes from the channel starting at given position, then flips the buffer.
+     */
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int r = channel.read(buffer, position);
+            if (r == -1) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += r;
+        }
+        buffer.flip();
+    }
+
+
+    /**
+     * Decodes block payload to (long kmer, short freq) records, payload must contain exactly given number of records.
+     * @return position in data after the payload, i.e. end
+     */
+    static int decodeBlock(byte[] data, int pos, int end, int records, ByteBuffer out) throws IOException {
+        long kmer = 0;
+        for (int i = 0; i < records; i++) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (pos >= end) {
+                    throw new IOException("Block payload is too short");
+                }
+                b = data[pos++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            int freq = 0;
+            shift = 0;
+            do {
+                if (pos >= end) {
+                    throw new IOException("Block payload is too short");
+                }
+                b = data[pos++];
+                freq |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            kmer += delta;
+            out.putLong(kmer);
+            out.putShort((short) freq);
+        }
+        if (pos != end) {
+            throw new IOException("Block payload is longer than its " + records + " records");
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,135 @@
+package io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Writes k-mers in v2 format (see KmersFile), k-mers must be added in ascending order.
+ */
+public class KmersFileWriter {
+
+    final File file;
+    final int k;
+    final int blockRecords;
+    final DataOutputStream out;
+    long offset;
+
+    long records = 0;
+    long prevKmer;
+    int blocks = 0;
+    long[] blockFirstKmer = new long[16];
+    long[] blockOffset = new long[16];
+
+    // current block
+    byte[] payload;
+    int payloadLen = 0;
+    int recordsInBlock = 0;
+    long lastKmerInBlock = 0;
+    final CRC32 crc = new CRC32();
+
+    public KmersFileWriter(File file, int k) throws IOException {
+        this(file, k, KmersFile.DEFAULT_BLOCK_RECORDS);
+    }
+
+    public KmersFileWriter(File file, int k, int blockRecords) throws IOException {
+        this.file = file;
+        this.k = k;
+        this.blockRecords = blockRecords;
+        payload = new byte[blockRecords * (10 + 3)];     // max varint sizes of long and short
+
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 24));   // 16 Mb buffer
+        out.write(new byte[KmersFile.HEADER_SIZE]);     // is rewritten in close()
+        offset = KmersFile.HEADER_SIZE;
+    }
+
+
+    public void write(long kmer, short freq) throws IOException {
+        if (records > 0 && kmer <= prevKmer) {
+            throw new IllegalArgumentException("K-mers must be written in ascending order");
+        }
+        if (recordsInBlock == blockRecords) {
+            flushBlock();
+        }
+        if (recordsInBlock == 0) {
+            if (blocks == blockFirstKmer.length) {
+                blockFirstKmer = Arrays.copyOf(blockFirstKmer, 2 * blocks);
+                blockOffset = Arrays.copyOf(blockOffset, 2 * blocks);
+            }
+            blockFirstKmer[blocks] = kmer;
+            blockOffset[blocks] = offset;
+            blocks++;
+        }
+
+        payloadLen = putVarint(payload, payloadLen, kmer - lastKmerInBlock);
+        payloadLen = putVarint(payload, payloadLen, freq & 0xFFFF);
+        lastKmerInBlock = kmer;
+        recordsInBlock++;
+        records++;
+        prevKmer = kmer;
+    }
+
+    /**
+     * Writes value as unsigned varint.
+     * @return position after the written varint
+     */
+    static int putVarint(byte[] buffer, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[pos++] = (byte) value;
+        return pos;
+    }
+
+    private void flushBlock() throws IOException {
+        crc.reset();
+        crc.update(payload, 0, payloadLen);
+        out.writeInt(payloadLen);
+        out.writeInt((int) crc.getValue());
+        out.write(payload, 0, payloadLen);
+        offset += 8 + payloadLen;
+
+        payloadLen = 0;
+        recordsInBlock = 0;
+        lastKmerInBlock = 0;
+    }
+
+
+    public long records() {
+        return records;
+    }
+
+    /**
+     * Writes the last block, the index and the header.
+     */
+    public void close() throws IOException {
+        if (recordsInBlock > 0) {
+            flushBlock();
+        }
+        long indexOffset = offset;
+        for (int i = 0; i < blocks; i++) {
+            out.writeLong(blockFirstKmer[i]);
+            out.writeLong(blockOffset[i]);
+        }
+        out.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.writeLong(KmersFile.MAGIC);
+            raf.writeInt(KmersFile.VERSION);
+            raf.writeInt(k);
+            raf.writeLong(records);
+            raf.writeInt(blockRecords);
+            raf.writeInt(blocks);
+            raf.writeLong(indexOffset);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -1,8 +1,6 @@
 package io;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public abstract class KmersLoadWorker extends BytesWorker {
 
@@ -13,23 +11,14 @@ public abstract class KmersLoadWorker extends BytesWorker {
     public abstract void processKmer(long kmer, short freq);
 
     @Override
-    public void process(byte[] range, int len) {
-        if (len % KMER_RECORD_SIZE != 0) {
+    public void process(ByteBuffer range) {
+        if (range.remaining() % KMER_RECORD_SIZE != 0) {
             throw new RuntimeException("BAD division by work range");
         }
-        try {
-            DataInputStream is = new DataInputStream(new ByteArrayInputStream(range, 0, len));
-            int c = len / KMER_RECORD_SIZE;
-            for (int i = 0; i < c; i++) {
-                long kmer = is.readLong();
-                short freq = is.readShort();
-                processKmer(kmer, freq);
-            }
-            if (is.available() > 0) {
-                throw new RuntimeException("Bad KMER_RECORD_SIZE!");
-            }
-        } catch (IOException e) {
-            throw new RuntimeException("Can't load kmers from file", e);
+        while (range.hasRemaining()) {
+            long kmer = range.getLong();
+            short freq = range.getShort();
+            processKmer(kmer, freq);
         }
     }
 }
@@ -0,0 +1,121 @@
+package io;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMap;
+
+import java.util.Arrays;
+
+/**
+ * Thread-local buffer counting k-mers before adding them to the shared map.<br></br>
+ * K-mers are accumulated in a small open-addressing table, so a k-mer repeated in the buffered part of the data
+ * costs one addAndBound() (and one acquisition of the sub-map's lock) instead of one per occurrence.
+ * When the table is half full, its entries are grouped by the target sub-map of hm and added group by group,
+ * so consecutive insertions go to the same sub-map. Every insertion still takes the sub-map's lock.
+ * Mustn't be shared between threads, flush() must be called after the last k-mer.
+ */
+public class LocalKmersCounter {
+    public static final int DEFAULT_LOG_CAPACITY = 14;    // 16 K entries, fits into L2 cache
+
+    final BigLong2ShortHashMap hm;
+    final int mapsMask;
+
+    final int mask;
+    final int maxFill;
+    final long[] keys;
+    final int[] values;     // bounded by Short.MAX_VALUE, 0 for free cell
+    int size = 0;
+
+    // for grouping by sub-map
+    final long[] groupedKeys;
+    final int[] groupedValues;
+    final int[] groupStart;
+
+    public LocalKmersCounter(BigLong2ShortHashMap hm) {
+        this(hm, DEFAULT_LOG_CAPACITY);
+    }
+
+    public LocalKmersCounter(BigLong2ShortHashMap hm, int logCapacity) {
+        this.hm = hm;
+        mapsMask = hm.maps.length - 1;
+
+        int capacity = 1 << logCapacity;
+        mask = capacity - 1;
+        maxFill = capacity / 2;
+        keys = new long[capacity];
+        values = new int[capacity];
+
+        groupedKeys = new long[maxFill];
+        groupedValues = new int[maxFill];
+        groupStart = new int[hm.maps.length + 1];
+    }
+
+
+    public void add(long kmer, int incValue) {
+        if (incValue <= 0) {
+            hm.addAndBound(kmer, (short) incValue);     // isn't buffered as 0 marks free cells
+            return;
+        }
+        int pos = (int) HashCommon.murmurHash3(kmer) & mask;
+        while (values[pos] != 0 && keys[pos] != kmer) {
+            pos = (pos + 1) & mask;
+        }
+        if (values[pos] == 0) {
+            keys[pos] = kmer;
+            size++;
+        }
+        values[pos] = Math.min(values[pos] + incValue, Short.MAX_VALUE);
+        if (size == maxFill) {
+            flush();
+        }
+    }
+
+    /**
+     * Adds all buffered k-mers to hm.
+     */
+    public void flush() {
+        if (size == 0) {
+            return;
+        }
+
+        // counting sort of entries by sub-map
+        Arrays.fill(groupStart, 0);
+        for (int i = 0; i <= mask; i++) {
+            if (values[i] != 0) {
+                groupStart[subMap(keys[i]) + 1]++;
+            }
+        }
+        for (int g = 0; g < mapsMask + 1; g++) {
+            groupStart[g + 1] += groupStart[g];
+        }
+        for (int i = 0; i <= mask; i++) {
+            if (values[i] != 0) {
+                int pos = groupStart[subMap(keys[i])]++;
+                groupedKeys[pos] = keys[i];
+                groupedValues[pos] = values[i];
+                values[i] = 0;
+            }
+        }
+
+        // groupStart[g] is the end of group g now
+        int from = 0;
+        for (int g = 0; g <= mapsMask; g++) {
+            int to = groupStart[g];
+            if (from < to) {
+                Long2ShortHashMap map = hm.maps[g];
+                for (int i = from; i < to; i++) {
+                    map.addAndBound(groupedKeys[i], (short) groupedValues[i]);
+                }
+            }
+            from = to;
+        }
+        size = 0;
+    }
+
+    /**
+     * The same choice of sub-map as in BigLong2ShortHashMap.
+     */
+    private int subMap(long kmer) {
+        return HashCommon.murmurHash3((int) kmer) & mapsMask;
+    }
+}
@@ -0,0 +1,63 @@
+package io;
+
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-maps the file and hands out work ranges as slices of the mapping, without copying data.<br></br>
+ * File is mapped in windows of at most 2 Gb, every window consists of whole work ranges,
+ * so if workRangeSize is a multiple of record size, every work range contains only complete records.
+ */
+public class MappedBytesDispatcher extends BytesDispatcher {
+
+    final long windowSize;
+    final MappedByteBuffer[] windows;
+
+    public MappedBytesDispatcher(File file, int workRangeSize, BigLong2ShortHashMap hmForMonitoring,
+                                 Logger fileLogger) throws IOException {
+        super(file, null, file.length(), null, workRangeSize, hmForMonitoring, fileLogger);
+        windowSize = (Integer.MAX_VALUE / workRangeSize) * (long) workRangeSize;
+
+        windows = new MappedByteBuffer[(int) ((fileSize + windowSize - 1) / windowSize)];
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            for (int i = 0; i < windows.length; i++) {
+                long offset = i * windowSize;
+                windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                        Math.min(windowSize, fileSize - offset));
+            }
+        } finally {
+            channel.close();    // mapping stays valid after closing the channel
+        }
+    }
+
+
+    @Override
+    public ByteBuffer readWorkRange() {
+        long offset = claimWorkRange();
+        if (offset == -1) {
+            return null;
+        }
+        int len = (int) Math.min(workRangeSize, fileSize - offset);
+
+        ByteBuffer range = windows[(int) (offset / windowSize)].duplicate();    // big-endian, as DataOutputStream
+        int start = (int) (offset % windowSize);
+        range.limit(start + len);
+        range.position(start);
+
+        addBytesRead(len);
+        return range.slice();
+    }
+
+    @Override
+    public void releaseWorkRange(ByteBuffer range) {
+        // nothing to release, mapping is freed together with the dispatcher
+    }
+}
@@ -0,0 +1,221 @@
+package io;
+
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.utils.tool.Tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dispatcher with a dedicated reader task filling reusable work ranges from a file.<br></br>
+ * Filled work ranges are taken by workers from a lock-free queue and are returned to the pool
+ * after processing, so the number of work ranges in flight is bounded by the pool size.<br></br>
+ * Dispatchers for several files can be chained: the reader of the next file starts as soon as
+ * the current file is read and reuses the same work ranges, while workers are still processing the tail
+ * of the current file.
+ */
+public abstract class PipelinedDispatcher<T> implements Runnable {
+    final File file;
+    private final Logger fileLogger;  // for "Loading file" messages
+    private final int workRangesNumber;
+    private ExecutorService executor;
+    private volatile LinkedTransferQueue<T> free;
+    private final LinkedTransferQueue<T> filled = new LinkedTransferQueue<T>();
+    private volatile T endMarker = null;
+    private PipelinedDispatcher<T> next = null;
+
+    private volatile boolean stopped = false;
+    private volatile Throwable error = null;
+
+    // per-stage statistics
+    long rangesRead = 0;
+    long readerBusyNs = 0, readerWaitNs = 0;
+    final AtomicLong rangesProcessed = new AtomicLong();
+    final AtomicLong workersBusyNs = new AtomicLong(), workersWaitNs = new AtomicLong();
+
+
+    protected PipelinedDispatcher(File file, int workRangesNumber, Logger fileLogger) {
+        this.file = file;
+        this.fileLogger = fileLogger;
+        this.workRangesNumber = workRangesNumber;
+    }
+
+
+    protected abstract T newWorkRange();
+
+    /**
+     * Is called from the reader task before reading the file.
+     */
+    protected abstract void open() throws IOException;
+
+    /**
+     * Is called from the reader task after the file is read or reading is stopped, even if open() failed.
+     */
+    protected abstract void close() throws IOException;
+
+    /**
+     * Is called from the reader task only.
+     * @return filled work range (given one or a new one, if given range is too small),
+     *         or null if there is no more data
+     */
+    protected abstract T fillWorkRange(T range) throws Exception;
+
+    /**
+     * @return amount of data read by the reader task in readable format
+     */
+    protected abstract String dataReadAsString();
+
+
+    /**
+     * Sets dispatcher which is started after this one has read its file. Should be called before start.
+     */
+    public void setNext(PipelinedDispatcher<T> next) {
+        this.next = next;
+    }
+
+    public PipelinedDispatcher<T> getNext() {
+        return next;
+    }
+
+    /**
+     * Allocates work ranges and submits the reader task to the executor.
+     */
+    public void start(ExecutorService executor) {
+        free = new LinkedTransferQueue<T>();
+        for (int i = 0; i < workRangesNumber; i++) {
+            free.add(newWorkRange());
+        }
+        this.executor = executor;
+        endMarker = newWorkRange();
+        executor.execute(this);
+    }
+
+    private void startAfter(PipelinedDispatcher<T> previous) {
+        executor = previous.executor;
+        endMarker = previous.endMarker;
+        free = previous.free;
+        executor.execute(this);
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (!stopped) {
+                Tool.info(fileLogger, "Loading file " + file.getName() + "...");
+                open();
+            }
+            while (!stopped) {
+                long t0 = System.nanoTime();
+                T taken = free.take();
+                long t1 = System.nanoTime();
+                readerWaitNs += t1 - t0;
+                if (taken == endMarker) {   // put by interrupt()
+                    free.add(taken);    // for readers of the following files
+                    break;
+                }
+                T range = fillWorkRange(taken);
+                readerBusyNs += System.nanoTime() - t1;
+                if (range == null) {
+                    free.add(taken);    // the next file's reader uses it
+                    break;
+                }
+                rangesRead++;
+                filled.add(range);
+            }
+        } catch (Throwable e) {
+            error = e;
+            stopped = true;
+        } finally {
+            try {
+                close();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+                stopped = true;
+            }
+        }
+        filled.add(endMarker);
+
+        if (next != null) {
+            if (stopped) {
+                next.stopped = true;
+            }
+            next.startAfter(this);
+        }
+    }
+
+
+    /**
+     * @return filled work range or null if there is no more data
+     */
+    public T takeWorkRange() throws InterruptedException {
+        long t0 = System.nanoTime();
+        T range = filled.take();
+        workersWaitNs.addAndGet(System.nanoTime() - t0);
+        if (range == endMarker) {
+            filled.add(endMarker);  // for other workers
+            return null;
+        }
+        return range;
+    }
+
+    public void releaseWorkRange(T range, long processingNs) {
+        rangesProcessed.incrementAndGet();
+        workersBusyNs.addAndGet(processingNs);
+        free.add(range);
+    }
+
+    /**
+     * Stops reading this and all following files and wakes up all waiting workers
+     * and the reader waiting for a free work range.
+     */
+    public void interrupt() {
+        stopped = true;
+        LinkedTransferQueue<T> free = this.free;
+        T marker = endMarker;
+        if (marker != null) {
+            filled.add(marker);
+            if (free != null) {
+                free.add(marker);
+            }
+        }
+        if (next != null) {
+            next.interrupt();
+        }
+    }
+
+    /**
+     * Is called by a worker failed to process work range, stops the processing.
+     */
+    public void fail(Throwable e) {
+        if (error == null) {
+            error = e;
+        }
+        interrupt();
+    }
+
+    /**
+     * @return exception thrown in the reader task or in one of workers, or null
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+
+    public String statistics() {
+        return "reader: " + dataReadAsString() + " in " + rangesRead + " work ranges, " +
+                "busy " + asSeconds(readerBusyNs) + ", waited for free ranges " + asSeconds(readerWaitNs) + "; " +
+                "workers: " + rangesProcessed.get() + " work ranges processed, " +
+                "busy " + asSeconds(workersBusyNs.get()) + ", waited for data " + asSeconds(workersWaitNs.get()) +
+                " (total for all workers)";
+    }
+
+    static String asSeconds(long ns) {
+        return String.format("%.1f s", ns / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,179 @@
+package io;
+
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.io.ReadersUtils;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.utils.Misc;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.tool.Tool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads raw bytes of uncompressed FASTA or FASTQ file and splits them on record boundaries,
+ * so that every work range contains only complete records.
+ * The incomplete tail of the read block is carried over to the next work range.
+ */
+public class ReadsBytesDispatcher extends PipelinedDispatcher<ByteBuffer> {
+    final Logger logger = Logger.getLogger("reads-bytes-dispatcher");
+
+    InputStream is;
+    final boolean fastq;
+    public final int workRangeSize;
+    long bytesRead = 0;
+    volatile int zeroQualityChar = -1;
+
+    byte[] carry = new byte[0];
+    int carryLen = 0;
+    boolean eof = false;
+
+    // statistics collected by workers
+    final AtomicLong reads = new AtomicLong(), skipped = new AtomicLong();
+
+    final BigLong2ShortHashMap hm; // for debug output
+
+    public ReadsBytesDispatcher(File file, boolean fastq, int workRangeSize, int workRangesNumber,
+                                BigLong2ShortHashMap hmForMonitoring, Logger fileLogger) {
+        super(file, workRangesNumber, fileLogger);
+        this.fastq = fastq;
+        this.workRangeSize = workRangeSize;
+        hm = hmForMonitoring;
+    }
+
+
+    /**
+     * Opens the file, for FASTQ files determines the quality char meaning phred = 0.
+     */
+    @Override
+    protected void open() throws IOException {
+        if (fastq) {
+            zeroQualityChar = ReadersUtils.determineQualityFormat(file).getPhredChar((byte) 0);
+        }
+        is = new FileInputStream(file);
+    }
+
+    @Override
+    protected void close() throws IOException {
+        if (is != null) {
+            is.close();
+        }
+    }
+
+    @Override
+    protected ByteBuffer newWorkRange() {
+        return ByteBuffer.allocate(workRangeSize);
+    }
+
+    /**
+     * Fills range with complete records, range's limit is set to the length of data.
+     * If the next record doesn't fit into the range, a larger range is created.
+     */
+    @Override
+    protected ByteBuffer fillWorkRange(ByteBuffer range) throws IOException {
+        while (true) {
+            if (eof && carryLen == 0) {
+                return null;
+            }
+            if (carryLen > range.capacity()) {
+                range = ByteBuffer.allocate(carry.length);  // carried over record doesn't fit
+            }
+            byte[] bytes = range.array();
+
+            System.arraycopy(carry, 0, bytes, 0, carryLen);
+            int len = carryLen;
+            carryLen = 0;
+            while (!eof && len < bytes.length) {
+                int r = is.read(bytes, len, bytes.length - len);
+                if (r == -1) {
+                    eof = true;
+                    is.close();
+                    break;
+                }
+                len += r;
+                bytesRead += r;
+                if ((bytesRead >> 30) != ((bytesRead - r) >> 30)) {   // every 1 Gb
+                    printProgress();
+                }
+            }
+
+            int end = eof ? len : (fastq ? lastFastqBoundary(bytes, len) : lastFastaBoundary(bytes, len));
+            if (end < len) {
+                if (carry.length < len - end) {
+                    carry = new byte[bytes.length];
+                }
+                System.arraycopy(bytes, end, carry, 0, len - end);
+                carryLen = len - end;
+            }
+            if (end == 0) {
+                if (eof) {
+                    return null;
+                }
+                range = ByteBuffer.allocate(2 * range.capacity());  // the next record doesn't fit
+                continue;
+            }
+            range.clear();
+            range.limit(end);
+            return range;
+        }
+    }
+
+    @Override
+    protected String dataReadAsString() {
+        return NumUtils.memoryAsString(bytesRead);
+    }
+
+    /**
+     * Every line starting with '>' or ';' begins a new FASTA record.
+     */
+    static int lastFastaBoundary(byte[] range, int len) {
+        for (int i = len - 1; i > 0; i--) {
+            if ((range[i] == '>' || range[i] == ';') && range[i - 1] == '\n') {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * FASTQ record consists of four non-empty lines, so boundaries are found by counting lines from the range start.
+     */
+    static int lastFastqBoundary(byte[] range, int len) {
+        int boundary = 0;
+        int lines = 0;
+        int pos = 0;
+        while (pos < len) {
+            int eol = pos;
+            while (eol < len && range[eol] != '\n') {
+                eol++;
+            }
+            if (eol == len) {
+                break;  // incomplete line
+            }
+            if (eol > pos && !(eol == pos + 1 && range[pos] == '\r')) {
+                lines++;
+                if ((lines & 3) == 0) {
+                    boundary = eol + 1;
+                }
+            }
+            pos = eol + 1;
+        }
+        return boundary;
+    }
+
+    private void printProgress() {
+        Tool.debug(logger, "Read " + NumUtils.memoryAsString(bytesRead) + " of reads data");
+        if (hm != null) {
+            Tool.debug(logger, "Total hm size = " + NumUtils.groupDigits(hm.size()) + ", " +
+                    "size in hm.maps = {" + NumUtils.groupDigits(hm.maps[0].size()) + ", "
+                    + NumUtils.groupDigits(hm.maps[1].size()) + ", "
+                    + NumUtils.groupDigits(hm.maps[2].size()) + ", "
+                    + NumUtils.groupDigits(hm.maps[3].size()) + ", ...}");
+        }
+        Tool.debug(logger, "Available memory (without running GC) = " + Misc.availableMemoryWithoutRunningGCAsString());
+    }
+}
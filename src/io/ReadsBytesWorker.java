@@ -0,0 +1,266 @@
+package io;
+
+import ru.ifmo.genetics.dna.Dna;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Worker parsing raw FASTA/FASTQ records and extracting canonical k-mers from them as 2-bit encoded longs,
+ * without creating Dna or ShortKmer objects.<br></br>
+ * Reads with 'N' nucleotide (and FASTQ reads with zero quality) are skipped, as in ReadersUtils readers.
+ */
+public abstract class ReadsBytesWorker implements Runnable {
+
+    /**
+     * Nucleotide codes (as in DnaTools), NUC_SKIP for unknown nucleotide, NUC_BAD for other chars.
+     */
+    static final byte[] NUC_CODES = new byte[256];
+    static final byte NUC_SKIP = -1, NUC_BAD = -2;
+    static {
+        Arrays.fill(NUC_CODES, NUC_BAD);
+        NUC_CODES['A'] = NUC_CODES['a'] = 0;
+        NUC_CODES['G'] = NUC_CODES['g'] = 1;
+        NUC_CODES['C'] = NUC_CODES['c'] = 2;
+        NUC_CODES['T'] = NUC_CODES['t'] = 3;
+        NUC_CODES['N'] = NUC_CODES['n'] = NUC_SKIP;
+    }
+
+
+    private ReadsBytesDispatcher dispatcher = null;
+    private CountDownLatch latch = null;
+    private int zeroQualityChar = -1;   // quality char meaning phred = 0 for FASTQ files, or -1 for FASTA files
+
+    boolean interrupted = false;
+
+    /**
+     * Number of the file (from 0) in the run, which the data being processed is from.
+     */
+    protected int fileNumber = 0;
+    int firstFileNumber = 0;
+
+    protected final int k;
+    protected final int minReadLen;
+    private final long mask;
+    private final int rcShift;
+
+    // statistics
+    int totalSeq = 0, goodSeq = 0;
+    long totalLen = 0, goodLen = 0;
+    long skipped = 0;
+
+
+    protected ReadsBytesWorker(int k, int minReadLen) {
+        this.k = k;
+        this.minReadLen = minReadLen;
+        mask = (1L << (2 * k)) - 1;
+        rcShift = 2 * k - 2;
+    }
+
+
+    /**
+     * @param dispatcher the first dispatcher in the chain of dispatchers for all files
+     */
+    void setDispatcher(ReadsBytesDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+    void setLatch(CountDownLatch latch) {
+        this.latch = latch;
+    }
+
+
+
+    /**
+     * Is called for every k-mer with its forward and reverse-complement representations,
+     * CanonicalKmersWorker passes the canonical one only.
+     * @param firstInRead true for the first k-mer of a read, otherwise k-mer is the shift of the previous one
+     */
+    protected abstract void processKmer(long fw, long rc, boolean firstInRead);
+
+
+    @Override
+    public void run() {
+        if (dispatcher == null || latch == null) {
+            throw new RuntimeException("Not full initialization!");
+        }
+        ReadsBytesDispatcher dispatcher = this.dispatcher;
+        long seqBefore = totalSeq, skippedBefore = skipped;
+        fileNumber = firstFileNumber;
+        try {
+            while (dispatcher != null && !interrupted) {
+                ByteBuffer range = dispatcher.takeWorkRange();
+                if (range == null) {
+                    dispatcher.reads.addAndGet(totalSeq - seqBefore);
+                    dispatcher.skipped.addAndGet(skipped - skippedBefore);
+                    seqBefore = totalSeq;
+                    skippedBefore = skipped;
+                    dispatcher = (ReadsBytesDispatcher) dispatcher.getNext();   // going to the next file
+                    fileNumber++;
+                    continue;
+                }
+                zeroQualityChar = dispatcher.zeroQualityChar;
+                long t = System.nanoTime();
+                process(range.array(), range.limit());
+                dispatcher.releaseWorkRange(range, System.nanoTime() - t);
+            }
+        } catch (InterruptedException e) {
+            // finishing
+        } catch (Throwable e) {
+            dispatcher.fail(e);
+        } finally {
+            latch.countDown();
+        }
+    }
+
+    public void interrupt() {
+        interrupted = true;
+    }
+
+
+    /**
+     * Processes range containing only complete records.
+     */
+    public void process(byte[] range, int len) {
+        if (zeroQualityChar == -1) {
+            processFasta(range, len);
+        } else {
+            processFastq(range, len);
+        }
+    }
+
+    void processFasta(byte[] range, int len) {
+        int pos = 0;
+        while (pos < len) {
+            if (range[pos] == '>' || range[pos] == ';') {
+                pos = nextLine(range, pos, len);
+                continue;
+            }
+            int end = pos;
+            while (end < len && range[end] != '>' && range[end] != ';') {
+                end = nextLine(range, end, len);
+            }
+            processRead(range, pos, end, false);
+            pos = end;
+        }
+    }
+
+    void processFastq(byte[] range, int len) {
+        int pos = 0;
+        while (pos < len) {
+            if (range[pos] == '\n' || range[pos] == '\r') {   // skipping empty lines
+                pos++;
+                continue;
+            }
+            if (range[pos] != '@') {
+                throw new RuntimeException("Unknown structure of fastq file! Waiting \"@ID\" string, found \"" +
+                        new String(range, pos, Math.min(nextLine(range, pos, len) - pos, 100)).trim() + "\"");
+            }
+            int seqStart = skipEmptyLines(range, nextLine(range, pos, len), len);
+            int seqEnd = nextLine(range, seqStart, len);
+            int qualStart = skipEmptyLines(range, nextLine(range, skipEmptyLines(range, seqEnd, len), len), len);
+            int qualEnd = nextLine(range, qualStart, len);
+
+            boolean good = true;
+            for (int i = qualStart; i < qualEnd && good; i++) {
+                if (range[i] == zeroQualityChar) {
+                    good = false;
+                }
+            }
+            if (good) {
+                processRead(range, seqStart, seqEnd, true);
+            } else {
+                skipped++;
+            }
+            pos = qualEnd;
+        }
+    }
+
+    /**
+     * Processes read stored in lines from range[from..to).
+     */
+    void processRead(byte[] range, int from, int to, boolean fastq) {
+        // first pass: checking nucleotides and calculating length
+        int length = 0;
+        for (int i = from; i < to; i++) {
+            byte c = range[i];
+            if (c == '\n' || c == '\r') {
+                continue;
+            }
+            byte nuc = NUC_CODES[c & 0xFF];
+            if (nuc < 0) {
+                if (nuc == NUC_SKIP || (fastq && c == '.')) {
+                    skipped++;
+                    return;
+                }
+                throw new IllegalArgumentException("Incorrect nucleotide char: \"" + (char) c + "\"");
+            }
+            length++;
+        }
+        if (length == 0) {
+            return;
+        }
+
+        totalSeq++;
+        totalLen += length;
+        if (length < minReadLen) {
+            return;
+        }
+        goodSeq++;
+        goodLen += length;
+
+        // second pass: rolling k-mers
+        long fw = 0, rc = 0;
+        int filled = 0;
+        for (int i = from; i < to; i++) {
+            byte nuc = NUC_CODES[range[i] & 0xFF];
+            if (nuc < 0) {
+                continue;   // line break
+            }
+            fw = ((fw << 2) | nuc) & mask;
+            rc = (rc >>> 2) | ((long) (3 - nuc) << rcShift);
+            if (++filled >= k) {
+                processKmer(fw, rc, filled == k);
+            }
+        }
+    }
+
+    /**
+     * Processes read loaded by ReadersUtils readers (used for compressed and binq files).
+     */
+    public void process(Dna dna) {
+        int length = dna.length();
+        totalSeq++;
+        totalLen += length;
+        if (length < minReadLen) {
+            return;
+        }
+        goodSeq++;
+        goodLen += length;
+
+        long fw = 0, rc = 0;
+        for (int i = 0; i < length; i++) {
+            byte nuc = dna.nucAt(i);
+            fw = ((fw << 2) | nuc) & mask;
+            rc = (rc >>> 2) | ((long) (3 - nuc) << rcShift);
+            if (i + 1 >= k) {
+                processKmer(fw, rc, i + 1 == k);
+            }
+        }
+    }
+
+
+    private static int nextLine(byte[] range, int pos, int len) {
+        while (pos < len && range[pos] != '\n') {
+            pos++;
+        }
+        return (pos < len) ? pos + 1 : len;
+    }
+
+    private static int skipEmptyLines(byte[] range, int pos, int len) {
+        while (pos < len && (range[pos] == '\n' || range[pos] == '\r')) {
+            pos++;
+        }
+        return pos;
+    }
+}
@@ -2,37 +2,61 @@ package io;
 
 import org.apache.log4j.Logger;
 import ru.ifmo.genetics.dna.Dna;
-import ru.ifmo.genetics.dna.DnaQ;
-import ru.ifmo.genetics.io.sources.Source;
+import ru.ifmo.genetics.io.ReadersUtils;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.utils.Misc;
 import ru.ifmo.genetics.utils.NumUtils;
 import ru.ifmo.genetics.utils.iterators.ProgressableIterator;
 import ru.ifmo.genetics.utils.tool.Tool;
 
-import java.io.*;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
-public class ReadsDispatcher {
+public class ReadsDispatcher extends PipelinedDispatcher<List<Dna>> {
     final Logger logger = Logger.getLogger("reads-dispatcher");
 
-    final ProgressableIterator<Dna> iterator;
+    ProgressableIterator<Dna> iterator;
     public final int workRangeSize;
     long reads = 0;
 
     final BigLong2ShortHashMap hm; // for debug output
 
-    public ReadsDispatcher(Source<Dna> reader, int workRangeSize, BigLong2ShortHashMap hmForMonitoring) {
-        this.iterator = reader.iterator();
+    public ReadsDispatcher(File file, int workRangeSize, int workRangesNumber,
+                           BigLong2ShortHashMap hmForMonitoring, Logger fileLogger) {
+        super(file, workRangesNumber, fileLogger);
         this.workRangeSize = workRangeSize;
 //        Tool.debug(logger, "Using " + workRangeSize + " reads as workRangeSize");
         this.hm = hmForMonitoring;
     }
 
 
-    public synchronized List<Dna> getWorkRange() {
-        List<Dna> list = new ArrayList<Dna>(workRangeSize);
+    @Override
+    protected void open() throws IOException {
+        iterator = ReadersUtils.readDnaLazy(file).iterator();
+    }
+
+    /**
+     * Readers close their files at the end of data, here only stopped ones are closed if they can be.
+     */
+    @Override
+    protected void close() throws IOException {
+        if (iterator instanceof Closeable) {
+            ((Closeable) iterator).close();
+        }
+        iterator = null;
+    }
+
+    @Override
+    protected List<Dna> newWorkRange() {
+        return new ArrayList<Dna>(workRangeSize);
+    }
+
+    @Override
+    protected List<Dna> fillWorkRange(List<Dna> list) {
+        list.clear();
         while ((list.size() < workRangeSize) && iterator.hasNext()) {
             list.add(iterator.next());
             ++reads;
@@ -51,4 +75,9 @@ public class ReadsDispatcher {
         }
         return list.isEmpty() ? null : list;
     }
+
+    @Override
+    protected String dataReadAsString() {
+        return NumUtils.groupDigits(reads) + " reads";
+    }
 }
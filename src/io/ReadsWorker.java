@@ -12,7 +12,15 @@ public abstract class ReadsWorker implements Runnable {
 
     boolean interrupted = false;
 
+    /**
+     * Number of the file (from 0) in the run, which the data being processed is from.
+     */
+    protected int fileNumber = 0;
 
+
+    /**
+     * @param dispatcher the first dispatcher in the chain of dispatchers for all files
+     */
     void setDispatcher(ReadsDispatcher dispatcher) {
         this.dispatcher = dispatcher;
     }
@@ -30,14 +38,27 @@ public abstract class ReadsWorker implements Runnable {
         if (dispatcher == null || latch == null) {
             throw new RuntimeException("Not full initialization!");
         }
-        while (!interrupted) {
-            List<Dna> list = dispatcher.getWorkRange();
-            if (list == null) {
-                break;
+        PipelinedDispatcher<List<Dna>> dispatcher = this.dispatcher;
+        fileNumber = 0;
+        try {
+            while (dispatcher != null && !interrupted) {
+                List<Dna> list = dispatcher.takeWorkRange();
+                if (list == null) {
+                    dispatcher = dispatcher.getNext();  // going to the next file
+                    fileNumber++;
+                    continue;
+                }
+                long t = System.nanoTime();
+                process(list);
+                dispatcher.releaseWorkRange(list, System.nanoTime() - t);
             }
-            process(list);
+        } catch (InterruptedException e) {
+            // finishing
+        } catch (Throwable e) {
+            dispatcher.fail(e);
+        } finally {
+            latch.countDown();
         }
-        latch.countDown();
     }
 
     public void interrupt() {
@@ -0,0 +1,151 @@
+package io;
+
+import ru.ifmo.genetics.dna.DnaTools;
+import ru.ifmo.genetics.io.Sink;
+import ru.ifmo.genetics.io.writers.FastaDedicatedWriter;
+import ru.ifmo.genetics.utils.TextUtils;
+import structures.Sequence;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes sequences to FASTA file in the order they are put, numbering them from 1.<br></br>
+ * Sequences are passed in batches through a bounded queue to the dedicated writing thread,
+ * so memory for not yet written sequences is bounded and the putting thread isn't blocked by disk.
+ * Sink isn't thread-safe, it should be used from one thread.
+ * Either close() or abort() must be called, otherwise the writing thread waits for sequences forever.
+ */
+public class SequencesWriter implements Sink<Sequence> {
+    static final int BATCH_SIZE = 1 << 10;
+    static final int QUEUE_CAPACITY = 16;
+    static final int BUFFER_SIZE = 1 << 20;
+    static final long PUT_TIMEOUT_MS = 100;
+
+    private final File file;
+    private final BlockingQueue<List<Sequence>> queue = new ArrayBlockingQueue<List<Sequence>>(QUEUE_CAPACITY);
+    private final List<Sequence> endMarker = new ArrayList<Sequence>(0);
+    private final Thread writingThread;
+    private final PrintWriter out;
+    private List<Sequence> batch = new ArrayList<Sequence>(BATCH_SIZE);
+    private long written = 0;
+    private volatile Throwable failure = null;
+
+    public SequencesWriter(File file) throws IOException {
+        this.file = file;
+        out = new PrintWriter(new BufferedWriter(new FileWriter(file), BUFFER_SIZE));
+        writingThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBatches();
+            }
+        }, "sequences-writer");
+        writingThread.start();
+    }
+
+    @Override
+    public void put(Sequence seq) {
+        batch.add(seq);
+        if (batch.size() >= BATCH_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * Passes put sequences to the writing thread.
+     */
+    @Override
+    public void flush() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        offer(batch);
+        batch = new ArrayList<Sequence>(BATCH_SIZE);
+    }
+
+    /**
+     * Waits until all sequences are written and closes the file.
+     */
+    @Override
+    public void close() {
+        flush();
+        offer(endMarker);
+        join();
+        checkFailure();
+        if (out.checkError()) {
+            throw new RuntimeException("Can't write sequences to file " + file);
+        }
+    }
+
+    /**
+     * Stops the writing thread without writing sequences which are not written yet, e.g. after an error.
+     * Does nothing if the writer is already closed.
+     */
+    public void abort() {
+        batch = new ArrayList<Sequence>(BATCH_SIZE);
+        if (!writingThread.isAlive()) {
+            return;
+        }
+        queue.clear();
+        try {
+            offer(endMarker);
+        } catch (RuntimeException e) {
+            // the writing thread has failed and finished
+        }
+        join();
+    }
+
+    /**
+     * Puts to the queue, checking that the writing thread is still working while the queue is full.
+     */
+    private void offer(List<Sequence> sequences) {
+        try {
+            while (!queue.offer(sequences, PUT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                checkFailure();
+                if (!writingThread.isAlive()) {
+                    throw new RuntimeException("Writing thread for file " + file + " has finished");
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void join() {
+        try {
+            writingThread.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new RuntimeException("Can't write sequences to file " + file, failure);
+        }
+    }
+
+    private void writeBatches() {
+        try {
+            while (true) {
+                List<Sequence> sequences = queue.take();
+                if (sequences == endMarker) {
+                    break;
+                }
+                for (Sequence seq : sequences) {
+                    written++;
+                    out.println(">" + seq.getFastaComment(written));
+                    TextUtils.printWithLineLimit(DnaTools.toString(seq), out, FastaDedicatedWriter.LINE_LIMIT);
+                }
+            }
+        } catch (Throwable e) {
+            failure = e;
+        } finally {
+            out.close();
+        }
+    }
+}
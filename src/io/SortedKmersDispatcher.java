@@ -0,0 +1,89 @@
+package io;
+
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Dispatcher for v2 k-mers files (see KmersFile).<br></br>
+ * Workers claim groups of consecutive blocks, read them with positional reads,
+ * check checksums and decode them to (long kmer, short freq) records in buffers from the pool,
+ * so KmersLoadWorker processes work ranges the same way as for v1 files.
+ */
+public class SortedKmersDispatcher extends BytesDispatcher {
+
+    final KmersFile.Header header;
+    final int blocksInWorkRange;
+
+    private final AtomicLong nextBlock = new AtomicLong();
+    private final ThreadLocal<byte[]> encoded = new ThreadLocal<byte[]>();
+
+    public SortedKmersDispatcher(File file, BufferPool pool, BigLong2ShortHashMap hmForMonitoring, Logger fileLogger)
+            throws IOException {
+        super(file, new FileInputStream(file).getChannel(), file.length(), pool, pool.bufferSize,
+                hmForMonitoring, fileLogger);
+        header = KmersFile.readHeader(channel, file);
+        blocksInWorkRange = workRangeSize / (header.blockRecords * KmersLoadWorker.KMER_RECORD_SIZE);
+        if (blocksInWorkRange == 0) {
+            throw new IOException("Too large blocks in file " + file.getName() + ": " + header.blockRecords + " records");
+        }
+    }
+
+
+    @Override
+    public ByteBuffer readWorkRange() {
+        long first = claim(nextBlock, blocksInWorkRange, header.blocks);
+        if (first == -1) {
+            return null;
+        }
+        int from = (int) first;
+        int to = Math.min(from + blocksInWorkRange, header.blocks);
+        long start = header.blockOffset[from];
+        int len = (int) (header.blockEnd(to - 1) - start);
+
+        byte[] data = encoded.get();
+        if (data == null || data.length < len) {
+            data = new byte[len];
+            encoded.set(data);
+        }
+        ByteBuffer range = pool.acquire();
+        try {
+            KmersFile.readFully(channel, ByteBuffer.wrap(data, 0, len), start);
+
+            CRC32 crc = new CRC32();
+            int pos = 0;
+            for (int block = from; block < to; block++) {
+                int payloadLen = readInt(data, pos);
+                int checksum = readInt(data, pos + 4);
+                pos += 8;
+                if (pos + payloadLen > len) {
+                    throw new IOException("Block " + block + " is out of its bounds");
+                }
+                crc.reset();
+                crc.update(data, pos, payloadLen);
+                if ((int) crc.getValue() != checksum) {
+                    throw new IOException("Checksum mismatch in block " + block);
+                }
+                pos = KmersFile.decodeBlock(data, pos, pos + payloadLen, header.recordsInBlock(block), range);
+            }
+        } catch (IOException e) {
+            pool.release(range);
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        range.flip();
+
+        addBytesRead(len);
+        return range;
+    }
+
+    private static int readInt(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16) |
+                ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+    }
+}
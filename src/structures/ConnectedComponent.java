@@ -1,5 +1,8 @@
 package structures;
 
+import io.ComponentsFile;
+import io.ComponentsFileReader;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import ru.ifmo.genetics.dna.Dna;
 import ru.ifmo.genetics.dna.kmers.ShortKmer;
 import ru.ifmo.genetics.io.writers.WritersUtils;
@@ -21,8 +24,9 @@ public class ConnectedComponent implements Comparable<ConnectedComponent> {
 
     /**
      * Stores k-mers if the component isn't a big one (less than b2 vertices).
+     * Use kmers.getLong(i) to get k-mers without boxing.
      */
-    public ArrayList<Long> kmers;
+    public LongArrayList kmers;
 
     /**
      * Current component size (number of k-mers)
@@ -50,7 +54,7 @@ public class ConnectedComponent implements Comparable<ConnectedComponent> {
 
 
     public ConnectedComponent() {
-        kmers = new ArrayList<>();
+        kmers = new LongArrayList();
         size = 0;
         weight = 0;
     }
@@ -68,28 +72,73 @@ public class ConnectedComponent implements Comparable<ConnectedComponent> {
 
 
 
+    /**
+     * Saves components in v2 format with compressed k-mers (see io.ComponentsFile).
+     */
     public static void saveComponents(Collection<ConnectedComponent> components, String fp) throws IOException {
-        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fp)));
-        outputStream.writeInt(components.size());
-        for (ConnectedComponent component : components) {
-            outputStream.writeInt((int) component.size);
-            outputStream.writeLong(component.weight);
-            for (long kmer : component.kmers) {
-                outputStream.writeLong(kmer);
+        ComponentsFile.write(components, new File(fp), true);
+    }
+
+    /**
+     * Loads only components with given numbers (from 1), in the same order.
+     * For v2 files other components aren't read at all.
+     */
+    public static List<ConnectedComponent> loadComponents(File file, int[] numbers) throws ExecutionFailedException {
+        List<ConnectedComponent> res = new ArrayList<ConnectedComponent>(numbers.length);
+        try {
+            if (ComponentsFile.detectVersion(file) == ComponentsFile.VERSION) {
+                ComponentsFileReader reader = new ComponentsFileReader(file);
+                try {
+                    for (int no : numbers) {
+                        if (no < 1 || no > reader.components()) {
+                            throw new ExecutionFailedException("No component " + no + " in file " + file.getName());
+                        }
+                        res.add(reader.get(no - 1));
+                    }
+                } finally {
+                    reader.close();
+                }
+                return res;
             }
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Can't load components from file " + file.getName(), e);
         }
 
-        outputStream.close();
+        List<ConnectedComponent> all = loadComponents(file);
+        for (int no : numbers) {
+            if (no < 1 || no > all.size()) {
+                throw new ExecutionFailedException("No component " + no + " in file " + file.getName());
+            }
+            res.add(all.get(no - 1));
+        }
+        return res;
     }
-    
+
+    /**
+     * Loads all components from file of v1 or v2 format.
+     */
     public static List<ConnectedComponent> loadComponents(File file) throws ExecutionFailedException {
         try {
+            if (ComponentsFile.detectVersion(file) == ComponentsFile.VERSION) {
+                ComponentsFileReader reader = new ComponentsFileReader(file);
+                try {
+                    List<ConnectedComponent> res = new ArrayList<ConnectedComponent>(reader.components());
+                    for (int i = 0; i < reader.components(); i++) {
+                        res.add(reader.get(i));
+                    }
+                    return res;
+                } finally {
+                    reader.close();
+                }
+            }
+
             DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
             int cnt = inputStream.readInt();
             List<ConnectedComponent> res = new ArrayList<ConnectedComponent>(cnt);
             for (int i = 0; i < cnt; i++) {
                 int componentSize = inputStream.readInt();
                 ConnectedComponent component = new ConnectedComponent();
+                component.kmers.ensureCapacity(componentSize);
 
                 component.weight = inputStream.readLong();
                 for (int j = 0; j < componentSize; j++) {
@@ -135,7 +184,8 @@ public class ConnectedComponent implements Comparable<ConnectedComponent> {
 			ConnectedComponent comp = components.get(i);
 			HashSet<Long> used = new HashSet<>();
 			String currSeq = "";
-			for (long kmer: comp.kmers) {
+			for (int j = 0; j < comp.kmers.size(); j++) {
+				long kmer = comp.kmers.getLong(j);
 				if (!used.contains(kmer)) {
 					used.add(kmer);
 					currSeq = new ShortKmer(kmer, k).toString();
@@ -1,24 +1,205 @@
 package structures;
 
-import ru.ifmo.genetics.structures.map.ArrayLong2IntHashMap;
+import algo.KmerOperations;
+import it.unimi.dsi.fastutil.HashCommon;
+import ru.ifmo.genetics.executors.BlockingThreadPoolExecutor;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMap;
 
 /**
  * Vladimir Ulyantsev
  * Date: 05.04.14
  * Time: 0:09
+ *
+ * De Bruijn graph on solid k-mers from hm, i.e. k-mers with frequency greater than freqThreshold.<br></br>
+ * For every solid k-mer an 8-bit mask of its edges is stored in a byte array parallel to the slots of hm's sub-map:
+ * bits 0..3 - nucleotides that can be appended to the right of canonical k-mer,
+ * bits 4..7 - nucleotides that can be appended to the left of it.
+ * So walking and branching detection need one lookup per k-mer instead of probing all neighbours.<br></br>
+ * Keys mustn't be added to hm after building the graph as it moves slots, values can be changed.
  */
 public class DeBruijnGraph {
 
-    private int k;
+    private final int k;
+    private final long mask;
+    private final int shift;
+    private final int freqThreshold;
 
-    public ArrayLong2IntHashMap hm;
+    public final BigLong2ShortHashMap hm;
+    private final int mapsMask;
+    private final byte[][] edges;
+    private final long[][] solid;   // bit sets over slots
 
-    private DeBruijnGraph(int k, ArrayLong2IntHashMap hm) {
+    private DeBruijnGraph(int k, BigLong2ShortHashMap hm, int freqThreshold) {
         this.k = k;
+        mask = (1L << (2 * k)) - 1;
+        shift = 2 * k - 2;
+        this.freqThreshold = freqThreshold;
         this.hm = hm;
+        mapsMask = hm.maps.length - 1;
+        edges = new byte[hm.maps.length][];
+        solid = new long[hm.maps.length][];
     }
 
     public int getK() {
         return k;
     }
+
+    public int getFreqThreshold() {
+        return freqThreshold;
+    }
+
+
+    /**
+     * Builds edges of all solid k-mers, every sub-map of hm is processed by a separate task.
+     */
+    public static DeBruijnGraph build(BigLong2ShortHashMap hm, int k, int freqThreshold, int availableProcessors)
+            throws InterruptedException {
+        final DeBruijnGraph graph = new DeBruijnGraph(k, hm, freqThreshold);
+        BlockingThreadPoolExecutor executor = new BlockingThreadPoolExecutor(availableProcessors);
+        for (int i = 0; i < hm.maps.length; i++) {
+            final int n = i;
+            executor.blockingExecute(new Runnable() {
+                @Override
+                public void run() {
+                    graph.buildSubMap(n);
+                }
+            });
+        }
+        executor.shutdownAndAwaitTermination();
+        return graph;
+    }
+
+    private void buildSubMap(int n) {
+        Long2ShortHashMap map = hm.maps[n];
+        int slots = (int) map.capacity() + 1;     // the last slot is for the free key
+        byte[] mapEdges = new byte[slots];
+        long[] mapSolid = new long[(slots + 63) >>> 6];
+        for (int pos = 0; pos < slots; pos++) {
+            if (map.containsAt(pos) && map.valueAt(pos) > freqThreshold) {
+                mapEdges[pos] = (byte) calcEdges(map.keyAt(pos));
+                mapSolid[pos >>> 6] |= 1L << pos;
+            }
+        }
+        edges[n] = mapEdges;
+        solid[n] = mapSolid;
+    }
+
+    /**
+     * Calculates edges of canonical k-mer by probing hm with current values.
+     */
+    private int calcEdges(long kmer) {
+        long rc = KmerOperations.rc(kmer, k);
+        int ans = 0;
+        for (int nuc = 0; nuc <= 3; nuc++) {
+            long right = Math.min(((kmer << 2) | nuc) & mask, (rc >>> 2) | ((long) (3 - nuc) << shift));
+            long left = Math.min((kmer >>> 2) | ((long) nuc << shift), ((rc << 2) | (3 - nuc)) & mask);
+            if (hm.get(right) > freqThreshold) {
+                ans |= 1 << nuc;
+            }
+            if (hm.get(left) > freqThreshold) {
+                ans |= 1 << (4 + nuc);
+            }
+        }
+        return ans;
+    }
+
+
+    /**
+     * @return edges mask of canonical k-mer, for k-mers which were not solid while building
+     *         it is calculated from current values in hm
+     */
+    public int edges(long kmer) {
+        int n = HashCommon.murmurHash3((int) kmer) & mapsMask;
+        long pos = hm.maps[n].getPosition(kmer);
+        if (pos >= 0 && (solid[n][(int) (pos >>> 6)] & (1L << pos)) != 0) {
+            return edges[n][(int) pos] & 0xFF;
+        }
+        return calcEdges(kmer);
+    }
+
+    /**
+     * @return mask of nucleotides that can be appended to the right of fw
+     */
+    public int rightNucleotides(long fw, long rc) {
+        if (fw <= rc) {
+            return edges(fw) & 15;
+        }
+        return reverse4(edges(rc) >>> 4);   // appending to the right of fw is prepending the complement to rc
+    }
+
+    /**
+     * @return mask of nucleotides that can be appended to the left of fw
+     */
+    public int leftNucleotides(long fw, long rc) {
+        if (fw <= rc) {
+            return edges(fw) >>> 4;
+        }
+        return reverse4(edges(rc) & 15);
+    }
+
+    private static int reverse4(int nucs) {
+        return ((nucs & 1) << 3) | ((nucs & 2) << 1) | ((nucs & 4) >>> 1) | ((nucs & 8) >>> 3);
+    }
+
+
+    /**
+     * @return the only nucleotide that can be appended to the right of fw,
+     *         -1 if there are no such nucleotides, -2 if there are several
+     */
+    public byte getRightNucleotide(long fw, long rc) {
+        return onlyNucleotide(rightNucleotides(fw, rc));
+    }
+
+    /**
+     * @return the only nucleotide that can be appended to the left of fw,
+     *         -1 if there are no such nucleotides, -2 if there are several
+     */
+    public byte getLeftNucleotide(long fw, long rc) {
+        return onlyNucleotide(leftNucleotides(fw, rc));
+    }
+
+    /**
+     * @return true if simple sequence starts from fw, i.e. fw can't be extended to the left unambiguously
+     *         or its left neighbour can't be extended to the right unambiguously
+     */
+    public boolean isSequenceStart(long fw, long rc) {
+        byte nuc = getLeftNucleotide(fw, rc);
+        if (nuc < 0) {
+            return true;
+        }
+        long leftFw = (fw >>> 2) | ((long) nuc << shift);
+        long leftRc = ((rc << 2) | (3 - nuc)) & mask;
+        return getRightNucleotide(leftFw, leftRc) < 0;
+    }
+
+    private static byte onlyNucleotide(int nucs) {
+        if (nucs == 0) {
+            return -1;
+        }
+        if ((nucs & (nucs - 1)) != 0) {
+            return -2;
+        }
+        return (byte) Integer.numberOfTrailingZeros(nucs);
+    }
+
+    /**
+     * Writes neighbours of canonical k-mer to buffer (of length at least 8)
+     * in the same order as KmerOperations.possibleNeighbours.
+     * @return number of neighbours written
+     */
+    public int neighbours(long kmer, long[] buffer) {
+        int e = edges(kmer);
+        long rc = KmerOperations.rc(kmer, k);
+        int n = 0;
+        for (int nuc = 0; nuc <= 3; nuc++) {
+            if ((e & (1 << nuc)) != 0) {
+                buffer[n++] = Math.min(((kmer << 2) | nuc) & mask, (rc >>> 2) | ((long) (3 - nuc) << shift));
+            }
+            if ((e & (1 << (4 + nuc))) != 0) {
+                buffer[n++] = Math.min((kmer >>> 2) | ((long) nuc << shift), ((rc << 2) | (3 - nuc)) & mask);
+            }
+        }
+        return n;
+    }
 }
@@ -0,0 +1,114 @@
+package structures;
+
+/**
+ * Features values for one sample, one value for every component.<br></br>
+ * Dense vector stores all values, sparse one stores only non-zero values with their indices.
+ */
+public class FeaturesVector {
+    /**
+     * Sparse vector takes 12 bytes per non-zero value instead of 8 bytes per value,
+     * so it is smaller while density is less than 2/3.
+     */
+    public static final double SPARSE_DENSITY = 2.0 / 3;
+
+    /**
+     * Number of values including zeros.
+     */
+    public final int length;
+    /**
+     * Indices of non-zero values in increasing order, null for dense vector.
+     */
+    public final int[] indices;
+    /**
+     * All values for dense vector, non-zero values for sparse one.
+     */
+    public final long[] values;
+
+    private FeaturesVector(int length, int[] indices, long[] values) {
+        this.length = length;
+        this.indices = indices;
+        this.values = values;
+    }
+
+    public static FeaturesVector dense(long[] values) {
+        return new FeaturesVector(values.length, null, values);
+    }
+
+    /**
+     * @param indices increasing indices of non-zero values
+     */
+    public static FeaturesVector sparse(int length, int[] indices, long[] values) {
+        if (indices.length != values.length) {
+            throw new IllegalArgumentException("Different number of indices and values");
+        }
+        return new FeaturesVector(length, indices, values);
+    }
+
+    /**
+     * @return sparse vector if density of values is less than SPARSE_DENSITY, otherwise dense one
+     */
+    public static FeaturesVector of(long[] values) {
+        FeaturesVector vector = dense(values);
+        return (nonZeros(values) < values.length * SPARSE_DENSITY) ? vector.toSparse() : vector;
+    }
+
+    public boolean isSparse() {
+        return indices != null;
+    }
+
+    /**
+     * @return number of stored values for sparse vector, length for dense one
+     */
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * @return number of non-zero values
+     */
+    public int nonZeros() {
+        return nonZeros(values);
+    }
+
+    public long[] toDense() {
+        if (!isSparse()) {
+            return values;
+        }
+        long[] dense = new long[length];
+        for (int i = 0; i < indices.length; i++) {
+            dense[indices[i]] = values[i];
+        }
+        return dense;
+    }
+
+    /**
+     * @return sparse vector with the same values, zeros of dense vector aren't stored
+     */
+    public FeaturesVector toSparse() {
+        if (isSparse()) {
+            return this;
+        }
+        int nonZeros = nonZeros(values);
+        int[] sparseIndices = new int[nonZeros];
+        long[] sparseValues = new long[nonZeros];
+        int n = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != 0) {
+                sparseIndices[n] = i;
+                sparseValues[n] = values[i];
+                n++;
+            }
+        }
+        return sparse(length, sparseIndices, sparseValues);
+    }
+
+    static int nonZeros(long[] values) {
+        int nonZeros = 0;
+        for (long value : values) {
+            if (value != 0) {
+                nonZeros++;
+            }
+        }
+        return nonZeros;
+    }
+}
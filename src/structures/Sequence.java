@@ -1,11 +1,10 @@
 package structures;
 
+import io.SequencesWriter;
 import ru.ifmo.genetics.dna.Dna;
-import ru.ifmo.genetics.io.writers.WritersUtils;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.LinkedList;
 
 public class Sequence extends Dna {
     int avgWeight, minWeight, maxWeight;
@@ -23,16 +22,25 @@ public class Sequence extends Dna {
     }
 
 
+    public String getFastaComment(long id) {
+        return String.format("%d length=%d av_weight=%d min_weight=%d max_weight=%d",
+                id, length(), avgWeight, minWeight, maxWeight);
+    }
+
+
     public static void printSequences(Iterable<Sequence> sequences, File file) throws IOException {
-        LinkedList<String> comments = new LinkedList<String>();
-
-        int sequenceId = 0;
-        for (Sequence seq : sequences) {
-            sequenceId++;
-            String seqInfo = String.format("%d length=%d av_weight=%d min_weight=%d max_weight=%d",
-                    sequenceId, seq.length(), seq.avgWeight, seq.minWeight, seq.maxWeight);
-            comments.add(seqInfo);
+        SequencesWriter writer = new SequencesWriter(file);
+        boolean closed = false;
+        try {
+            for (Sequence seq : sequences) {
+                writer.put(seq);
+            }
+            writer.close();
+            closed = true;
+        } finally {
+            if (!closed) {
+                writer.abort();
+            }
         }
-        WritersUtils.writeDnasToFastaFile(comments, sequences, file, false);
     }
 }
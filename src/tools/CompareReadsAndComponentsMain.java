@@ -1,9 +1,8 @@
 package tools;
 
-import structures.ConnectedComponent;
+import io.ComponentsIndex;
 import ru.ifmo.genetics.dna.DnaTools;
 import ru.ifmo.genetics.dna.kmers.ShortKmer;
-import ru.ifmo.genetics.structures.map.ArrayLong2IntHashMap;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
@@ -48,13 +47,17 @@ public class CompareReadsAndComponentsMain extends Tool {
     private List<int[]> readsBegins = new ArrayList<int[]>();
     private List<int[]> readsEnds = new ArrayList<int[]>();
 
-    private List<ConnectedComponent> components;
+    private ComponentsIndex index;
 
     @Override
     protected void runImpl() throws ExecutionFailedException {
-        debug("Lets load components");
-        components = ConnectedComponent.loadComponents(componentsFile.get());
-        debug("Components loaded, loading reference");
+        debug("Lets load components index");
+        try {
+            index = ComponentsIndex.open(componentsFile.get(), k.get(), workDir.get(), logger);
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Couldn't load components index", e);
+        }
+        debug("Components index loaded, loading reference");
 
         try {
             readReferenceContigs();
@@ -90,20 +93,9 @@ public class CompareReadsAndComponentsMain extends Tool {
             throw new ExecutionFailedException("Couldn't load samtools", e);
         }
 
-        debug("Building kmer-to-component map");
-        ArrayLong2IntHashMap kmerToComponent =
-                new ArrayLong2IntHashMap((int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4);
-
-        for (int compNum = 0; compNum < components.size(); compNum++) {
-            for (long kmer : components.get(compNum).kmers) {
-                assert kmerToComponent.get(kmer) == 0;
-                kmerToComponent.add(kmer, compNum + 1);
-            }
-        }
-
         debug("Printing statistics");
         try {
-            int[] componentToCount = new int[components.size() + 1];
+            int[] componentToCount = new int[index.components() + 1];
             PrintWriter pw = new PrintWriter(workDir + File.separator + "reference-to-component");
 
             long inComponents = 0, inReads = 0, inComponentsAndReads = 0;
@@ -122,7 +114,7 @@ public class CompareReadsAndComponentsMain extends Tool {
                     }
 
                     if (pos >= k.get()) {
-                        int componentNum = kmerToComponent.get(currentKmer.toLong());
+                        int componentNum = index.componentOf(currentKmer.toLong());
                         pw.println((pos - k.get()) + " " + componentNum + " " + currentReadsCount);
                         componentToCount[componentNum]++;
 
@@ -157,6 +149,12 @@ public class CompareReadsAndComponentsMain extends Tool {
             componentStatPW.close();
         } catch (FileNotFoundException e) {
             e.printStackTrace();
+        } finally {
+            try {
+                index.close();
+            } catch (IOException e) {
+                // does not matter
+            }
         }
 
         debug("done");
@@ -9,7 +9,9 @@ import ru.ifmo.genetics.utils.Misc;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import ru.ifmo.genetics.utils.tool.values.InValue;
 import structures.ConnectedComponent;
+import structures.DeBruijnGraph;
 import structures.Sequence;
+import io.ComponentsIndex;
 import io.IOUtils;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
@@ -68,6 +70,8 @@ public class ComponentCutterMain extends Tool {
 	public final InValue<File> componentsFileOut = addOutput("components-file", componentsFile, File.class);
 	private final InMemoryValue<File> componentsStatPr = new InMemoryValue<File>();
 	public final InValue<File> componentsStatOut = addOutput("components-stat", componentsStatPr, File.class);
+	private final InMemoryValue<File> componentsIndexPr = new InMemoryValue<File>();
+	public final InValue<File> componentsIndexOut = addOutput("components-index", componentsIndexPr, File.class);
 
 	@Override
 	protected void runImpl() throws ExecutionFailedException, IOException {
@@ -92,9 +96,16 @@ public class ComponentCutterMain extends Tool {
 		int root = 0;
 		int link = 0;
 		int multi = 0;
+		DeBruijnGraph graph;
+		try {
+			graph = DeBruijnGraph.build(hm, k.get(), 0, availableProcessors.get());
+		} catch (InterruptedException e) {
+			throw new ExecutionFailedException("Thread was interrupted", e);
+		}
+		long[] neighbours = new long[8];
 		for (MutableLong kmer: hm) {
 			if (hm.get(kmer.toLong()) <= 0) continue;
-			int neighbors = ComponentsBuilder.neighboursInGraph(hm, kmer.toLong(), k.get()).length;
+			int neighbors = graph.neighbours(kmer.toLong(), neighbours);
 			if (neighbors == 0) solo++;
 			else if (neighbors == 1) root++;
 			else if (neighbors == 2) link++;
@@ -106,13 +117,15 @@ public class ComponentCutterMain extends Tool {
 		try {
 			String statFP = workDir + File.separator + "components-stat-" + minComponentSize.get() + "-"
 					+ maxComponentSize.get() + ".txt";
-			components = ComponentsBuilder.splitStrategy(alg.get(), hm, sequences, k.get(), minComponentSize.get(),
+			components = ComponentsBuilder.splitStrategy(alg.get(), graph, sequences, k.get(), minComponentSize.get(),
 					maxComponentSize.get(), statFP, logger, availableProcessors.get());
 
 			componentsStatPr.set(new File(statFP));
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 			return;
+		} catch (InterruptedException e) {
+			throw new ExecutionFailedException("Thread was interrupted", e);
 		}
 		info("Total " + NumUtils.groupDigits(components.size()) + " components were found");
 		if (components.size() == 0) {
@@ -130,6 +143,16 @@ public class ComponentCutterMain extends Tool {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+
+		File indexFile = ComponentsIndex.indexFileFor(componentsFile.get());
+		try {
+			ComponentsIndex.write(components, k.get(), indexFile);
+			componentsIndexPr.set(indexFile);
+			info("Components index saved to " + indexFile);
+		} catch (IOException e) {
+			warn("Can't write components index " + indexFile + " (" + e.getMessage() + "), " +
+					"it will be built by tools using it");
+		}
 		debug("Components-cutter has finished! Time = " + t);
 	}
 
@@ -143,6 +166,8 @@ public class ComponentCutterMain extends Tool {
 				"File with components' statistics (in text format)");
 		IOUtils.tryToAppendDescription(outputDescFiles, componentsFileOut.get(),
 				"File with extracted components (in binary format)");
+		IOUtils.tryToAppendDescription(outputDescFiles, componentsIndexOut.get(),
+				"Index from k-mers to numbers of components (in binary format)");
 	}
 
 	public static void main(String[] args) {
@@ -1,6 +1,7 @@
 package tools;
 
 import io.IOUtils;
+import org.apache.commons.lang.ArrayUtils;
 import ru.ifmo.genetics.dna.Dna;
 import ru.ifmo.genetics.dna.kmers.ShortKmer;
 import ru.ifmo.genetics.io.ReadersUtils;
@@ -91,7 +92,11 @@ public class ComponentPathsMain extends Tool {
         debug("Loading components...");
         List<ConnectedComponent> allComps;
 
-        allComps = ConnectedComponent.loadComponents(componentsFile.get());
+        if (allComponents.get()) {
+            allComps = ConnectedComponent.loadComponents(componentsFile.get());
+        } else {
+            allComps = ConnectedComponent.loadComponents(componentsFile.get(), ArrayUtils.toPrimitive(components.get()));
+        }
         info(NumUtils.groupDigits(allComps.size()) + " components loaded from " + componentsFile.get());
 
 
@@ -103,17 +108,11 @@ public class ComponentPathsMain extends Tool {
         }
         ConnectedComponent[] usedComps = new ConnectedComponent[n];
         LongHashSet[] compKmers = new LongHashSet[n];
-        if (allComponents.get()) {
-            allComps.toArray(usedComps);
-        } else {
-            for (int i = 0; i < n; i++) {
-                usedComps[i] = allComps.get(components.get()[i]-1);
-            }
-        }
+        allComps.toArray(usedComps);
         for (int i = 0; i < n; i++) {
             compKmers[i] = new LongHashSet((int) (usedComps[i].size / 0.75f) +10);
-            for (long kmer : usedComps[i].kmers) {
-                compKmers[i].add(kmer);
+            for (int j = 0; j < usedComps[i].kmers.size(); j++) {
+                compKmers[i].add(usedComps[i].kmers.getLong(j));
             }
         }
         List<Sequence>[] ans = new List[n];
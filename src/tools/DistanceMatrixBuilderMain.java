@@ -123,6 +123,8 @@ public class DistanceMatrixBuilderMain extends Tool {
         setFixDefault(featuresCalculator.readsFiles);
         setFix(featuresCalculator.kmersFiles, kmersCounter.resultingKmerFiles);
         setFixDefault(featuresCalculator.threshold);
+        setFixDefault(featuresCalculator.batchSize);
+        setFixDefault(featuresCalculator.textFeatures);
         featuresCalculator.outputDescFiles = outputDescFiles;
         addSubTool(featuresCalculator);
     }
@@ -1,5 +1,9 @@
 package tools;
 
+import algo.DistanceMatrix;
+import algo.Metric;
+import io.DistancesCache;
+import io.FeaturesFile;
 import io.IOUtils;
 import ru.ifmo.genetics.utils.FileUtils;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
@@ -9,10 +13,14 @@ import ru.ifmo.genetics.utils.tool.inputParameterBuilder.BoolParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.StringParameterBuilder;
+import structures.FeaturesVector;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class DistanceMatrixCalculatorMain extends Tool {
     public static final String NAME = "dist-matrix-calculator";
@@ -44,30 +52,51 @@ public class DistanceMatrixCalculatorMain extends Tool {
             .withDescription("output format for distance values")
             .create());
 
+    public final Parameter<String> metricName = addParameter(new StringParameterBuilder("metric")
+            .withDefaultValue("bray-curtis")
+            .withDescription("distance metric, one of: " + String.join(", ", Metric.NAMES))
+            .create());
+
+    public final Parameter<File> cacheFile = addParameter(new FileParameterBuilder("distances-cache")
+            .withShortOpt("dc")
+            .withDescription("file with distances from the previous run, if it's given, distances are " +
+                    "calculated only for new or changed features files and the file is updated")
+            .create());
+
     public File[] outputDescFiles = null;
 
 
     @Override
     protected void runImpl() throws ExecutionFailedException {
-        List<List<Long>> features = new ArrayList<List<Long>>();
+        Metric metric = Metric.create(metricName.get());
+        if (metric == null) {
+            throw new ExecutionFailedException("Unknown metric " + metricName.get() + ", possible metrics: " +
+                    String.join(", ", Metric.NAMES));
+        }
+
+        List<FeaturesVector> features = new ArrayList<FeaturesVector>();
 
         for (File featuresFile : featuresFiles.get()) {
             try {
-                features.add(readVector(featuresFile));
+                features.add(FeaturesFile.read(featuresFile));
             } catch (IOException e) {
                 throw new ExecutionFailedException("Failed to read features from " + featuresFile);
             }
         }
 
-        int cnt = features.size();
-        double[][] distMatrix = new double[cnt][cnt];
-
-        for (int i = 0; i < cnt; i++) {
-            for (int j = i + 1; j < cnt; j++) {
-                distMatrix[i][j] = brayCurtisDistance(features.get(i), features.get(j));
-                distMatrix[j][i] = distMatrix[i][j];
+        for (int i = 1; i < features.size(); i++) {
+            if (features.get(i).length != features.get(0).length) {
+                throw new ExecutionFailedException("Features files " + featuresFiles.get()[0] + " and " +
+                        featuresFiles.get()[i] + " have different number of features");
             }
         }
+        FeaturesVector[] vectors = features.toArray(new FeaturesVector[features.size()]);
+        double[][] distMatrix;
+        if (cacheFile.get() == null) {
+            distMatrix = DistanceMatrix.calculate(vectors, metric, availableProcessors.get());
+        } else {
+            distMatrix = updateCachedMatrix(vectors, metric);
+        }
 
         String matrixPath = matrixFile.get().getPath().replace("$DT", startTimestamp);
         String[] names = null;
@@ -88,6 +117,72 @@ public class DistanceMatrixCalculatorMain extends Tool {
         matrixFile.set(new File(matrixPath));
     }
 
+    /**
+     * Takes distances between vectors with the same digests from the cache, calculates other ones
+     * and rewrites the cache.
+     */
+    private double[][] updateCachedMatrix(FeaturesVector[] vectors, Metric metric) throws ExecutionFailedException {
+        int n = vectors.length;
+        byte[][] digests = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            digests[i] = DistancesCache.digest(vectors[i]);
+        }
+
+        double[][] matrix = new double[n][n];
+        boolean[] known = new boolean[n];
+        int[] cachedIndex = new int[n];
+        DistancesCache cache = null;
+        if (cacheFile.get().exists()) {
+            try {
+                cache = DistancesCache.read(cacheFile.get());
+            } catch (IOException e) {
+                warn("Can't read distances cache " + cacheFile.get() + " (" + e.getMessage() + "), ignoring it");
+            }
+        }
+        if (cache != null && !cache.metric.equals(metricName.get())) {
+            warn("Distances cache " + cacheFile.get() + " is for metric " + cache.metric + ", ignoring it");
+            cache = null;
+        }
+        if (cache != null) {
+            Map<ByteBuffer, Integer> index = new HashMap<ByteBuffer, Integer>();
+            for (int i = 0; i < cache.digests.length; i++) {
+                index.put(ByteBuffer.wrap(cache.digests[i]), i);
+            }
+            boolean[] used = new boolean[cache.digests.length];
+            for (int i = 0; i < n; i++) {
+                Integer c = index.get(ByteBuffer.wrap(digests[i]));
+                if (c != null && !used[c]) {    // distance between equal vectors isn't cached
+                    known[i] = true;
+                    cachedIndex[i] = c;
+                    used[c] = true;
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    if (known[i] && known[j] && i != j) {
+                        matrix[i][j] = cache.matrix[cachedIndex[i]][cachedIndex[j]];
+                    }
+                }
+            }
+        }
+
+        int knownCount = 0;
+        for (boolean k : known) {
+            knownCount += k ? 1 : 0;
+        }
+        info("Distances for " + knownCount + " of " + n + " features files are taken from cache, " +
+                "calculating them for other " + (n - knownCount) + " files");
+        DistanceMatrix.update(vectors, metric, matrix, known, availableProcessors.get());
+
+        try {
+            new DistancesCache(metricName.get(), digests, matrix).write(cacheFile.get());
+            info("Distances cache saved to " + cacheFile.get());
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Failed to write distances cache " + cacheFile.get(), e);
+        }
+        return matrix;
+    }
+
     public static void printMatrix(double[][] matrix, String fp, String[] names, int[] perm, String format) throws FileNotFoundException {
         File f = new File(fp);
         FileUtils.makeSubDirsOnly(f);
@@ -122,36 +217,6 @@ public class DistanceMatrixCalculatorMain extends Tool {
         out.close();
     }
 
-    private List<Long> readVector(File file) throws IOException {
-        List<Long> ans = new ArrayList<Long>();
-
-        BufferedReader reader = new BufferedReader(new FileReader(file));
-        String line;
-        while ((line = reader.readLine()) != null) {
-            if (!line.isEmpty()) {
-                ans.add(Long.parseLong(line));
-            }
-        }
-        reader.close();
-
-        return ans;
-    }
-
-    private double brayCurtisDistance(List<Long> vector1, List<Long> vector2) {
-        assert vector1.size() == vector2.size();
-
-        long sumdiff = 0, sum = 0;
-
-        for (int pos = 0; pos < vector1.size(); pos++) {
-            sumdiff += Math.abs(vector1.get(pos) - vector2.get(pos));
-            sum += Math.abs(vector1.get(pos)) + Math.abs(vector2.get(pos));
-        }
-
-        assert sum > 0;
-        return sumdiff / (double) sum;
-    }
-
-
     @Override
     protected void cleanImpl() {
     }
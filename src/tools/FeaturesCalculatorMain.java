@@ -1,25 +1,29 @@
 package tools;
 
+import io.ComponentsIndex;
+import io.FeaturesFile;
 import io.IOUtils;
 import ru.ifmo.genetics.io.ReadersUtils;
 import ru.ifmo.genetics.statistics.Timer;
-import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
 import ru.ifmo.genetics.utils.FileUtils;
 import ru.ifmo.genetics.utils.Misc;
 import ru.ifmo.genetics.utils.NumUtils;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.BoolParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import ru.ifmo.genetics.utils.tool.values.InValue;
-import structures.ConnectedComponent;
+import structures.FeaturesVector;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class FeaturesCalculatorMain extends Tool {
     public static final String NAME = "features-calculator";
@@ -56,6 +60,18 @@ public class FeaturesCalculatorMain extends Tool {
             .withDefaultValue(0)
             .create());
 
+    public final Parameter<Integer> batchSize = addParameter(new IntParameterBuilder("batch-size")
+            .withShortOpt("bs")
+            .withDescription("number of files processed in one pass, 0 to choose it by available memory")
+            .withDefaultValue(0)
+            .create());
+
+    public final Parameter<Boolean> textFeatures = addParameter(new BoolParameterBuilder("text-features")
+            .withShortOpt("tf")
+            .optional()
+            .withDescription("print features values in text format (one value per line) instead of binary one")
+            .create());
+
     public File[] outputDescFiles = null;
 
 
@@ -70,16 +86,15 @@ public class FeaturesCalculatorMain extends Tool {
     protected void runImpl() throws ExecutionFailedException, IOException {
         Timer t = new Timer();
 
-        debug("Loading components...");
-        List<ConnectedComponent> components =
-                ConnectedComponent.loadComponents(componentsFile.get());
-        info(NumUtils.groupDigits(components.size()) + " components loaded from " + componentsFile.get());
+        debug("Loading components index...");
+        ComponentsIndex index = ComponentsIndex.open(componentsFile.get(), k.get(), workDir.get(), logger);
+        info(NumUtils.groupDigits(index.components()) + " components loaded from " + componentsFile.get());
 
-        if (components.size() == 0) {
+        if (index.components() == 0) {
+            index.close();
             throw new ExecutionFailedException("No components were found in input files! Can't continue the calculations.");
         }
 
-        String compName = FileUtils.removeExtension(componentsFile.get().getName(), ".bin");
         File outDir = new File(workDir.get(), "vectors");
         outDir.mkdirs();
         debug(outDir + " directory was created for components file " + componentsFile.get().getName());
@@ -87,105 +102,109 @@ public class FeaturesCalculatorMain extends Tool {
 
 
         // preparing
-        BigLong2LongHashMap hm = new BigLong2LongHashMap(
-                (int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4, 12);
-        for (ConnectedComponent component : components) {
-            for (long kmer : component.kmers) {
-                hm.put(kmer, 0);
-            }
-        }
-        debug("Kmers in components = " + NumUtils.groupDigits(hm.size()));
-        final long[] vector = new long[components.size()];
+        debug("Kmers in components = " + NumUtils.groupDigits(index.kmers()));
+        int batch = batchSize.get() > 0 ? batchSize.get() : autoBatchSize(index.kmers(), index.components());
+        debug("Files are processed in batches of " + batch + " files");
         debug("Memory used (before processing files) = " + Misc.usedMemoryAsString() + ", Time for preparing = " + t);
 
 
-        int featuresFilesCount = (readsFiles.get() == null ? 0 : readsFiles.get().length)
-                                  + (kmersFiles.get() == null ? 0 : kmersFiles.get().length);
-        File[] featuresFiles = new File[featuresFilesCount];
-        int curFiles = 0;
-
-        if (readsFiles.get() != null) {
-            for (File readsFile : readsFiles.get()) {
-                hm.resetValues();
-                IOUtils.calculatePresenceForReads(new File[]{readsFile}, k.get(), hm,
-                        availableProcessors.get(), logger);
+        List<File> featuresFiles = new ArrayList<File>();
 
-                File outFile = new File(outDir, ReadersUtils.readDnaLazy(readsFile).name() + ".vec");
-                buildAndPrintVector(components, hm, threshold.get(), vector, outFile);
-                info("Features for file " + readsFile.getName() + " printed to " + outFile);
-                featuresFiles[curFiles] = outFile;
-                curFiles++;
+        try {
+            File[] reads = readsFiles.get() == null ? new File[0] : readsFiles.get();
+            for (int from = 0; from < reads.length; from += batch) {
+                File[] files = Arrays.copyOfRange(reads, from, Math.min(from + batch, reads.length));
+                AtomicLongArray[] counts = newCounts(files.length, index);
+                IOUtils.calculatePresenceForReads(files, index, counts, availableProcessors.get(), logger);
+
+                String[] names = new String[files.length];
+                File[] outFiles = new File[files.length];
+                for (int i = 0; i < files.length; i++) {
+                    names[i] = ReadersUtils.readDnaLazy(files[i]).name();
+                    outFiles[i] = new File(outDir, names[i] + ".vec");
+                }
+                buildAndPrintVectors(index, counts, threshold.get(), files, names, outFiles);
+                featuresFiles.addAll(Arrays.asList(outFiles));
             }
-        }
 
-        if (kmersFiles.get() != null) {
-            for (File kmersFile : kmersFiles.get()) {
-                hm.resetValues();
-                IOUtils.calculatePresenceForKmers(new File[]{kmersFile}, hm,
-                        availableProcessors.get(), logger);
-
-                File outFile = new File(outDir, FileUtils.removeExtension(kmersFile.getName(), ".kmers.bin") + ".vec");
-                buildAndPrintVector(components, hm, threshold.get(), vector, outFile);
-                info("Features for file " + kmersFile.getName() + " printed to " + outFile);
-                featuresFiles[curFiles] = outFile;
-                curFiles++;
+            File[] kmers = kmersFiles.get() == null ? new File[0] : kmersFiles.get();
+            for (int from = 0; from < kmers.length; from += batch) {
+                File[] files = Arrays.copyOfRange(kmers, from, Math.min(from + batch, kmers.length));
+                AtomicLongArray[] counts = newCounts(files.length, index);
+                IOUtils.calculatePresenceForKmers(files, index, counts, availableProcessors.get(), logger);
+
+                String[] names = new String[files.length];
+                File[] outFiles = new File[files.length];
+                for (int i = 0; i < files.length; i++) {
+                    names[i] = FileUtils.removeExtension(files[i].getName(), ".kmers.bin");
+                    outFiles[i] = new File(outDir, names[i] + ".vec");
+                }
+                buildAndPrintVectors(index, counts, threshold.get(), files, names, outFiles);
+                featuresFiles.addAll(Arrays.asList(outFiles));
             }
+        } finally {
+            index.close();
         }
 
-        featuresFilesPr.set(featuresFiles);
+        featuresFilesPr.set(featuresFiles.toArray(new File[featuresFiles.size()]));
         debug("Features-calculator has finished! Time = " + t);
     }
 
-    private void buildAndPrintVector(final List<ConnectedComponent> components, final BigLong2LongHashMap hm,
-                                     final int threshold, final long[] vector, File outFile) throws ExecutionFailedException {
+    /**
+     * @return number of files, which counts and vectors take not more than a half of free memory
+     */
+    private static int autoBatchSize(long kmers, int components) {
+        Runtime runtime = Runtime.getRuntime();
+        long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        long perFile = kmers * 8 + components * 8L;
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, free / 2 / Math.max(1, perFile)));
+    }
 
-        try {
-            debug("Building vector...");
-
-            // calculating
-            Arrays.fill(vector, 0);
-            Thread[] workers = new Thread[availableProcessors.get()];
-            int compPerWorker = (components.size() / workers.length) + ((components.size() % workers.length == 0) ? 0 : 1);
-            for (int i = 0; i < workers.length; i++) {
-                final int from = i * compPerWorker;
-                final int to = Math.min(components.size(), (i + 1) * compPerWorker);
-                if (to > from) {
-                    workers[i] = new Thread(new Runnable() {
-                        @Override
-                        public void run() {
-                            for (int i = from; i < to; i++) {
-                                ConnectedComponent component = components.get(i);
-                                long kmers = 0;
-                                for (long kmer : component.kmers) {
-                                    long value = hm.getWithZero(kmer);
-                                    if (value > threshold) {
-                                        kmers += value;
-                                    }
-                                }
-                                vector[i] = kmers;
-                            }
-                        }
-                    });
-                    workers[i].start();
-                }
-            }
-            for (Thread thread : workers) {
-                if (thread != null) {
-                    thread.join();
+    private static AtomicLongArray[] newCounts(int files, ComponentsIndex index) {
+        AtomicLongArray[] counts = new AtomicLongArray[files];
+        for (int i = 0; i < files; i++) {
+            counts[i] = new AtomicLongArray((int) index.kmers());
+        }
+        return counts;
+    }
+
+    /**
+     * Builds vectors for all files of the batch in one pass over the index.
+     * Feature of a component is the sum of counts of its k-mers, which counts are greater than threshold.
+     * K-mer met in several components (or several times in one component) adds to each of its entries.
+     */
+    private void buildAndPrintVectors(ComponentsIndex index, AtomicLongArray[] counts, int threshold,
+                                      File[] files, String[] names, File[] outFiles) throws ExecutionFailedException {
+        debug("Building vectors...");
+
+        // calculating
+        long[][] vectors = new long[counts.length][index.components()];
+        long entry = 0;
+        for (int pos = 0; pos < index.kmers(); pos++) {
+            long nextEntry = index.firstEntry(pos + 1);
+            for (; entry < nextEntry; entry++) {
+                int component = index.componentOfEntry(entry) - 1;
+                for (int i = 0; i < counts.length; i++) {
+                    long value = counts[i].get(pos);
+                    if (value > threshold) {
+                        vectors[i][component] += value;
+                    }
                 }
             }
+        }
 
-            // writing to file
-            PrintWriter out = new PrintWriter(new BufferedWriter(
-                    new OutputStreamWriter(new FileOutputStream(outFile)), 1 << 20));   // 1 Mb buffer
-            for (long kmers : vector) {
-                out.println(kmers);
+        // writing to files
+        for (int i = 0; i < outFiles.length; i++) {
+            try {
+                if (textFeatures.get()) {
+                    FeaturesFile.writeText(vectors[i], outFiles[i]);
+                } else {
+                    FeaturesFile.write(FeaturesVector.of(vectors[i]), names[i], outFiles[i]);
+                }
+            } catch (IOException e) {
+                throw new ExecutionFailedException("Can't write vector to file " + outFiles[i], e);
             }
-            out.close();
-        } catch (IOException e) {
-            throw new ExecutionFailedException("Can't write vector to file " + outFile, e);
-        } catch (InterruptedException e) {
-            throw new ExecutionFailedException("Calculating thread was interrupted!", e);
+            info("Features for file " + files[i].getName() + " printed to " + outFiles[i]);
         }
     }
 
@@ -197,7 +216,8 @@ public class FeaturesCalculatorMain extends Tool {
     protected void postprocessing() {
         IOUtils.tryToAppendDescription(outputDescFiles,
                 featuresDirOut.get(),
-                "Directory with features values files for every library (in text format)"
+                "Directory with features values files for every library (in " +
+                        (textFeatures.get() ? "text" : "binary") + " format)"
         );
     }
 
@@ -9,6 +9,7 @@ import ru.ifmo.genetics.utils.tool.Tool;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.LongParameterBuilder;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import ru.ifmo.genetics.utils.tool.values.InValue;
 
@@ -40,6 +41,14 @@ public class KmersCounterForManyFilesMain extends Tool {
             .withDefaultValue(1)
             .create());
 
+    public final Parameter<Long> memoryBudget = addParameter(new LongParameterBuilder("memory-budget")
+            .optional()
+            .withDescription("memory for counting k-mers in bytes, if it's given and k-mers can't fit in it, " +
+                    "they are counted using disk")
+            .withDefaultComment("k-mers are counted in memory")
+            .memoryParameter()
+            .create());
+
     public final Parameter<File> outputDir = addParameter(new FileParameterBuilder("output-dir")
             .withDescription("Output directory")
             .withDefaultValue(workDir.append("kmers"))
@@ -74,6 +83,7 @@ public class KmersCounterForManyFilesMain extends Tool {
             counter.k.set(k);
             counter.inputFiles.set(new File[]{f});
             counter.maximalBadFrequency.set(maximalBadFrequency);
+            counter.memoryBudget.set(memoryBudget);
             counter.outputDir.set(outputDir);
             counter.statsDir.set(statsDir);
 
@@ -1,5 +1,6 @@
 package tools;
 
+import io.ExternalKmersCounter;
 import io.IOUtils;
 import ru.ifmo.genetics.dna.kmers.ShortKmerIteratorFactory;
 import ru.ifmo.genetics.io.ReadersUtils;
@@ -12,6 +13,7 @@ import ru.ifmo.genetics.utils.tool.Tool;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.LongParameterBuilder;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import ru.ifmo.genetics.utils.tool.values.InValue;
 import ru.ifmo.genetics.utils.NumUtils;
@@ -45,6 +47,14 @@ public class KmersCounterMain extends Tool {
             .withDefaultValue(1)
             .create());
 
+    public final Parameter<Long> memoryBudget = addParameter(new LongParameterBuilder("memory-budget")
+            .optional()
+            .withDescription("memory for counting k-mers in bytes, if it's given and k-mers can't fit in it, " +
+                    "they are counted using disk")
+            .withDefaultComment("k-mers are counted in memory")
+            .memoryParameter()
+            .create());
+
     public final Parameter<File> outputDir = addParameter(new FileParameterBuilder("output-dir")
             .withDescription("Output directory")
             .withDefaultValue(workDir.append("kmers"))
@@ -74,12 +84,6 @@ public class KmersCounterMain extends Tool {
         }
 
 
-        Timer t = new Timer();
-        BigLong2ShortHashMap hm = IOUtils.loadReads(inputFiles.get(), k.get(), 0,
-                availableProcessors.get(),  logger);
-        debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
-
-
         File outDir = outputDir.get();
         if (!outDir.exists()) {
             outDir.mkdirs();
@@ -95,25 +99,45 @@ public class KmersCounterMain extends Tool {
         File stFile = new File(stDir, name + ".stat.txt");
 
 
-        debug("Starting to print k-mers to " + outFile.getPath());
+        Timer t = new Timer();
+        // the estimate is an upper bound by files' sizes, so disk is used only if the budget is given explicitly
+        long estimatedKmers = (memoryBudget.get() == null) ? 0 :
+                ExternalKmersCounter.estimateKmersNumber(inputFiles.get(), k.get());
+        long kmersNumber;
         long c = 0;
-        try {
-            c = IOUtils.printKmers(hm, maximalBadFrequency.get(), outFile, stFile);
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (memoryBudget.get() == null || ExternalKmersCounter.fitsInMemory(estimatedKmers, memoryBudget.get())) {
+            BigLong2ShortHashMap hm = IOUtils.loadReads(inputFiles.get(), k.get(), 0,
+                    availableProcessors.get(),  logger);
+            debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
+            kmersNumber = hm.size();
+
+            debug("Starting to print k-mers to " + outFile.getPath());
+            try {
+                c = IOUtils.printKmers(hm, k.get(), maximalBadFrequency.get(), outFile, stFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else {
+            debug("Up to " + NumUtils.groupDigits(estimatedKmers) + " k-mers are expected, " +
+                    "they can't fit in memory budget " + NumUtils.memoryAsString(memoryBudget.get()));
+            ExternalKmersCounter counter = new ExternalKmersCounter(k.get(), memoryBudget.get(), estimatedKmers,
+                    workDir.append("buckets").get(), availableProcessors.get(), logger);
+            c = counter.count(inputFiles.get(), maximalBadFrequency.get(), outFile, stFile);
+            kmersNumber = counter.kmers;
+            debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
         }
-        info(NumUtils.groupDigits(hm.size()) + " k-mers found, "
-                + NumUtils.groupDigits(c) + " (" + String.format("%.1f", c * 100.0 / hm.size()) + "%) of them is good (not erroneous)");
+        info(NumUtils.groupDigits(kmersNumber) + " k-mers found, "
+                + NumUtils.groupDigits(c) + " (" + String.format("%.1f", c * 100.0 / kmersNumber) + "%) of them is good (not erroneous)");
 
-        if (hm.size() == 0) {
+        if (kmersNumber == 0) {
             warn("No k-mers found in reads! Perhaps you reads file is empty or k-mer size is too big");
-        } else if (c == 0 || c < (long) (hm.size() * 0.03)) {
+        } else if (c == 0 || c < (long) (kmersNumber * 0.03)) {
             warn("Too few good k-mers were found! Perhaps you should decrease k-mer size or --maximal-bad-frequency value");
         }
         long allKmersNumber = (1L << (2*k.get())) / 2;  // (4^k)/2
-        if (hm.size() == allKmersNumber) {
+        if (kmersNumber == allKmersNumber) {
             warn("All possible k-mers were found in reads! Perhaps you should increase k-mer size");
-        } else if (hm.size() >= (long) (allKmersNumber * 0.99)) {
+        } else if (kmersNumber >= (long) (allKmersNumber * 0.99)) {
             warn("Almost all possible k-mers were found in reads! Perhaps you should increase k-mer size");
         }
 
@@ -2,6 +2,7 @@ package tools;
 
 import algo.SequencesFinders;
 import io.IOUtils;
+import io.SequencesWriter;
 import ru.ifmo.genetics.statistics.*;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
@@ -14,12 +15,10 @@ import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import ru.ifmo.genetics.utils.tool.values.InValue;
 import ru.ifmo.genetics.utils.FileUtils;
 import ru.ifmo.genetics.utils.NumUtils;
-import structures.Sequence;
 
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Deque;
 import java.util.Iterator;
 
 public class SeqBuilderMain extends Tool {
@@ -142,25 +141,33 @@ public class SeqBuilderMain extends Tool {
         File destination = new File(fp);
         outputFilePr.set(destination);
 
-        Deque<Sequence> sequences;
+        long sequences;
+        SequencesWriter writer;
+        try {
+            writer = new SequencesWriter(destination);
+        } catch (IOException e) {
+            throw new RuntimeException("Can't write sequences to file", e);
+        }
+        boolean closed = false;
         try {
             sequences = SequencesFinders.thresholdStrategy(hm, availableProcessors.get(),
-                    maximalBadFrequency.get(), sequenceLen.get(), k.get());
+                    maximalBadFrequency.get(), sequenceLen.get(), k.get(), writer);
+            writer.close();
+            closed = true;
         } catch (InterruptedException e) {
             e.printStackTrace();
             return;
+        } finally {
+            if (!closed) {
+                writer.abort();
+            }
         }
-        info(NumUtils.groupDigits(sequences.size()) + " sequences found");
-        if (sequences.size() == 0) {
+        info(NumUtils.groupDigits(sequences) + " sequences found");
+        if (sequences == 0) {
             warn("No sequences were found! Perhaps you should decrease --min-seq-len or --maximal-bad-frequency values");
         }
         debug("Memory used (without running GC) = " + Misc.usedMemoryWithoutRunningGCAsString());
 
-        try {
-            Sequence.printSequences(sequences, destination);
-        } catch (IOException e) {
-            throw new RuntimeException("Can't write sequences to file", e);
-        }
         info("Sequences printed to " + destination);
 
         //info("N50 value of sequences = " + getN50(sequenceLen));
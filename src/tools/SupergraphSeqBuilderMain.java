@@ -1,5 +1,7 @@
 package tools;
 
+import algo.HashMapOperations;
+import algo.KmerOperations;
 import io.IOUtils;
 import ru.ifmo.genetics.dna.DnaTools;
 import ru.ifmo.genetics.dna.kmers.KmerIteratorFactory;
@@ -176,6 +178,7 @@ public class SupergraphSeqBuilderMain extends Tool {
         int freqThreshold = supergraphFreq.get();
         int lenThreshold = sequenceLen.get();
         int kValue = k.get();
+        long mask = (1L << (2 * kValue)) - 1;
 
         banKmers(hm, freqThreshold, kValue);
 
@@ -197,17 +200,17 @@ public class SupergraphSeqBuilderMain extends Tool {
             if (value <= freqThreshold) {
                 continue;
             }
-            ShortKmer kmer = new ShortKmer(key, kValue);
+            long fw = key, rc = KmerOperations.rc(key, kValue);
 
-            if (getLeftNucleotide(kmer, hm, freqThreshold) >= 0) {
+            if (HashMapOperations.getLeftNucleotide(hm, fw, rc, kValue, freqThreshold) >= 0) {
                 continue;
             }
 
-            StringBuilder sequenceSB = new StringBuilder(kmer.toString());
+            StringBuilder sequenceSB = new StringBuilder(new ShortKmer(key, kValue).toString());
             long seqWeight = 0, minWeight = value, maxWeight = value;
 
             while (true) {
-                long kmerRepr = kmer.toLong();
+                long kmerRepr = Math.min(fw, rc);
                 value = hm.getWithZero(kmerRepr);
                 seqWeight += value;
                 minWeight = Math.min(minWeight, value);
@@ -215,12 +218,13 @@ public class SupergraphSeqBuilderMain extends Tool {
 
                 hm.put(kmerRepr, BAN_VALUE);
 
-                byte rightNuc = getRightNucleotide(kmer, hm, freqThreshold);
+                byte rightNuc = HashMapOperations.getRightNucleotide(hm, fw, rc, kValue, freqThreshold);
                 if (rightNuc < 0) {
                     break;
                 }
                 sequenceSB.append(DnaTools.toChar(rightNuc));
-                kmer.shiftRight(rightNuc);
+                fw = ((fw << 2) | rightNuc) & mask;
+                rc = (rc >>> 2) | ((long) (3 - rightNuc) << (2 * kValue - 2));
             }
 
             if (sequenceSB.length() >= lenThreshold) {
@@ -273,9 +277,9 @@ public class SupergraphSeqBuilderMain extends Tool {
                 continue;
             }
 
-            ShortKmer kmer = new ShortKmer(key, k);
-            if (getLeftNucleotide(kmer, hm, freqThreshold) == -2 ||
-                    getRightNucleotide(kmer, hm, freqThreshold) == -2) {
+            long rc = KmerOperations.rc(key, k);
+            if (HashMapOperations.getLeftNucleotide(hm, key, rc, k, freqThreshold) == -2 ||
+                    HashMapOperations.getRightNucleotide(hm, key, rc, k, freqThreshold) == -2) {
                 hm.put(key, BAN_VALUE);
                 totalBanned += value;
                 uniqueBanned++;
@@ -287,38 +291,6 @@ public class SupergraphSeqBuilderMain extends Tool {
         info("Total k-mers banned = " + totalBanned + ", unique = " + uniqueBanned);
     }
 
-    private static byte getLeftNucleotide(ShortKmer kmer, BigLong2ShortHashMap hm, int freqThreshold) {
-        byte rightNuc = kmer.nucAt(kmer.length() - 1);
-        byte ansNuc = -1;
-        for (byte nuc = 0; nuc <= 3; nuc++) {
-            kmer.shiftLeft(nuc);
-            if (hm.get(kmer.toLong()) > freqThreshold) {
-                if (ansNuc > -1) {
-                    return -2;
-                }
-                ansNuc = nuc;
-            }
-            kmer.shiftRight(rightNuc);
-        }
-        return ansNuc;
-    }
-
-    private static byte getRightNucleotide(ShortKmer kmer, BigLong2ShortHashMap hm, int freqThreshold) {
-        byte leftNuc = kmer.nucAt(0);
-        byte ansNuc = -1;
-        for (byte nuc = 0; nuc <= 3; nuc++) {
-            kmer.shiftRight(nuc);
-            if (hm.get(kmer.toLong()) > freqThreshold) {
-                if (ansNuc > -1) {
-                    return -2;
-                }
-                ansNuc = nuc;
-            }
-            kmer.shiftLeft(leftNuc);
-        }
-        return ansNuc;
-    }
-
     void dumpStat(int[] stat, String filename) throws FileNotFoundException {
         PrintWriter pw = new PrintWriter(filename);
         for (int i = 1; i < stat.length; ++i) {
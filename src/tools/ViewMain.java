@@ -1,6 +1,7 @@
 package tools;
 
 import io.IOUtils;
+import io.KmersFile;
 import it.unimi.dsi.fastutil.longs.Long2IntMap;
 import ru.ifmo.genetics.ToolTemplate;
 import ru.ifmo.genetics.dna.Dna;
@@ -81,6 +82,18 @@ public class ViewMain extends Tool {
         }
 
         if (kmersFile.get() != null) {
+            int kmerSize = k.get();
+            try {
+                if (KmersFile.detectVersion(kmersFile.get()) == KmersFile.VERSION) {
+                    kmerSize = KmersFile.readHeader(kmersFile.get()).k;
+                    if (kmerSize != k.get()) {
+                        warn("k-mers file was saved with k = " + kmerSize + ", using it instead of k = " + k.get());
+                    }
+                }
+            } catch (IOException e) {
+                throw new ExecutionFailedException("Can't read k-mers file " + kmersFile.get(), e);
+            }
+
             BigLong2ShortHashMap kmersHM =
                     IOUtils.loadKmers(new File[]{kmersFile.get()}, 0, availableProcessors.get(), logger);
 
@@ -89,7 +102,7 @@ public class ViewMain extends Tool {
             Iterator<MutableLongShortEntry> it = kmersHM.entryIterator();
             while (it.hasNext()) {
                 MutableLongShortEntry entry = it.next();
-                out.println(new ShortKmer(entry.getKey(), k.get()) + "\t" + entry.getValue());
+                out.println(new ShortKmer(entry.getKey(), kmerSize) + "\t" + entry.getValue());
             }
         }
 
@@ -107,8 +120,8 @@ public class ViewMain extends Tool {
                 out.println("Component " + (i + 1) + ", size = " + component.size + " kmers, " +
                         "weight = " + component.weight +". Kmers:");
 
-                for (long kmer : component.kmers) {
-                    out.println(new ShortKmer(kmer, k.get()).toString());
+                for (int j = 0; j < component.kmers.size(); j++) {
+                    out.println(new ShortKmer(component.kmers.getLong(j), k.get()).toString());
                 }
                 out.println();
             }
@@ -42,8 +42,8 @@ public class Classifier {
 			ConnectedComponent comp = components.get(i);
 			for (int j = 0; j < genHms.length; j++) {
 				long commonKmers = 0;
-				for (long kmer : comp.kmers) {
-					if (genHms[j].contains(kmer))
+				for (int t = 0; t < comp.kmers.size(); t++) {
+					if (genHms[j].contains(comp.kmers.getLong(t)))
 						commonKmers++;
 				}
 				coeffs[i][j] = ((double) commonKmers) / comp.kmers.size();
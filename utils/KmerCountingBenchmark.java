@@ -0,0 +1,74 @@
+import io.CanonicalKmersWorker;
+import io.IOUtils;
+import io.ReadsBytesWorker;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+
+import java.io.File;
+
+/**
+ * Compares scaling of k-mer counting modes of IOUtils.loadReads with the number of threads:
+ * direct addAndBound on the shared map, thread-local buffers and partitioning by minimizer.
+ */
+public class KmerCountingBenchmark {
+	static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+	static class DirectWorker extends CanonicalKmersWorker {
+		final BigLong2ShortHashMap hm;
+
+		DirectWorker(BigLong2ShortHashMap hm, int k) {
+			super(k, 0);
+			this.hm = hm;
+		}
+
+		@Override
+		public void processKmer(long kmer) {
+			hm.addAndBound(kmer, (short) 1);
+		}
+	}
+
+	static long direct(File[] files, int k, int threads, Logger logger) throws Exception {
+		BigLong2ShortHashMap hm = new BigLong2ShortHashMap((int) (Math.log(threads) / Math.log(2)) + 4, 12);
+		ReadsBytesWorker[] workers = new ReadsBytesWorker[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new DirectWorker(hm, k);
+		}
+		IOUtils.run(files, workers, null, logger);
+		return hm.size();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.out.println("Usage: java KmerCountingBenchmark <k> <repeats> <reads files...>");
+			return;
+		}
+		int k = Integer.parseInt(args[0]);
+		int repeats = Integer.parseInt(args[1]);
+		File[] files = new File[args.length - 2];
+		for (int i = 2; i < args.length; i++) {
+			files[i - 2] = new File(args[i]);
+		}
+		Logger logger = Logger.getLogger("benchmark");
+		Logger.getRootLogger().setLevel(Level.WARN);
+
+		System.out.println("threads\tdirect, ms\tlocal buffers, ms\tpartitioned, ms\tk-mers");
+		for (int threads : THREADS) {
+			long[] best = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+			long kmers = 0;
+			for (int r = 0; r < repeats; r++) {
+				for (int mode = 0; mode < 3; mode++) {
+					System.gc();
+					long start = System.nanoTime();
+					if (mode == 0) {
+						kmers = direct(files, k, threads, logger);
+					} else {
+						kmers = IOUtils.loadReads(files, k, 0, threads, mode == 2, logger).size();
+					}
+					best[mode] = Math.min(best[mode], (System.nanoTime() - start) / 1000000);
+				}
+			}
+			System.out.println(threads + "\t" + best[0] + "\t" + best[1] + "\t" + best[2] + "\t" + kmers);
+		}
+	}
+}